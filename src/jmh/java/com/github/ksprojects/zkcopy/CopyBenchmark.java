@@ -0,0 +1,296 @@
+package com.github.ksprojects.zkcopy;
+
+import com.github.ksprojects.ZkCopy;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import com.github.ksprojects.zkcopy.reader.Reader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * End-to-end copy throughput between two ZooKeeper servers running in this
+ * JVM, on a generated source tree.
+ *
+ * <p>The source tree is created asynchronously before the clock starts, then
+ * a full {@link ZkCopy} run copies it to the empty target. Reported are nodes
+ * and payload bytes copied per second and the peak heap during the copy,
+ * which includes both servers.
+ */
+@Command(name = "copy-benchmark", showDefaultValues = true)
+public class CopyBenchmark implements Callable<Void> {
+    private static final Logger LOGGER = Logger.getLogger(CopyBenchmark.class);
+    private static final int SESSION_TIMEOUT = 40000;
+    private static final int TICK_TIME = 2000;
+    private static final int MAX_CONNECTIONS = 1000;
+    private static final int CREATES_IN_FLIGHT = 5000;
+    private static final int WIDE_FANOUT = 1000;
+    private static final int BALANCED_FANOUT = 10;
+    private static final int DEPTH = 100;
+    private static final int DEFAULT_PAYLOAD = 32;
+    private static final int LARGE_PAYLOAD = 16 * 1024;
+    private static final double MB = 1024 * 1024;
+
+    @Option(names = "--help", usageHelp = true, description = "display this help and exit")
+    boolean help;
+
+    @Option(names = { "-p", "--profile" },
+            description = "shape of the source tree: wide (1000 children per node), deep (chains of 100 nodes), "
+                        + "large-payload (10 children per node, 16 KB each), "
+                        + "many-ephemeral (10 children per node, every other leaf ephemeral)")
+    String profile = "wide";
+
+    @Option(names = { "-n", "--nodes" }, description = "number of source nodes")
+    int nodes = 100000;
+
+    @Option(names = { "--payload" },
+            description = "bytes of data per node, -1 for the profile's default")
+    int payload = -1;
+
+    @Option(names = { "--zkcopy" },
+            paramLabel = "<args>",
+            description = "additional zkcopy options, separated by spaces")
+    String zkcopyArgs = "";
+
+    @Option(names = { "--verify" },
+            description = "read the target tree after copying and check the node count",
+            arity = "0..1")
+    boolean verify = false;
+
+    /**
+     * Main entry point - run the benchmark and stop the servers.
+     */
+    public static void main(String[] args) {
+        System.setProperty("zookeeper.forceSync", "no");
+        // both servers register the same JMX name, and log every closed client connection
+        Logger.getLogger("org.apache.zookeeper.jmx").setLevel(Level.ERROR);
+        Logger.getLogger("org.apache.zookeeper.server").setLevel(Level.ERROR);
+        CommandLine.call(new CopyBenchmark(), System.err, args);
+        System.exit(0);
+    }
+
+    @Override
+    public Void call() throws Exception {
+        ServerCnxnFactory source = startServer();
+        ServerCnxnFactory target = startServer();
+        ZooKeeper generator = null;
+        try {
+            String sourceHost = "127.0.0.1:" + source.getLocalPort();
+            String targetHost = "127.0.0.1:" + target.getLocalPort();
+            generator = new ZooKeeper(sourceHost, SESSION_TIMEOUT, new LoggingWatcher());
+            long start = System.nanoTime();
+            Generated generated = generate(generator);
+            LOGGER.info(String.format("Generated %d nodes (%d ephemeral) of %d bytes in %.1f s", generated.nodes,
+                    generated.ephemeral, generated.size, seconds(start)));
+
+            List<String> args = new ArrayList<>(Arrays.asList("-s", sourceHost + "/source", "-t",
+                    targetHost + "/target"));
+            for (String arg : zkcopyArgs.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    args.add(arg);
+                }
+            }
+            System.gc();
+            long baseline = usedHeap();
+            resetPeakHeap();
+            start = System.nanoTime();
+            ZkCopy.main(args.toArray(new String[args.size()]));
+            double elapsed = seconds(start);
+            long peak = peakHeap();
+
+            // ephemeral nodes are not copied unless -i is given
+            long copied = generated.nodes - (args.contains("-i") ? 0 : generated.ephemeral);
+            double bytes = (double) copied * generated.size;
+            LOGGER.info(String.format("Copied %s tree of %d nodes in %.2f s: %.0f nodes/s, %.2f MB/s, "
+                    + "peak heap %.0f MB (%.0f MB above the %.0f MB in use before the copy)", profile, copied,
+                    elapsed, copied / elapsed, bytes / MB / elapsed, peak / MB, (peak - baseline) / MB,
+                    baseline / MB));
+            LOGGER.info(Metrics.summary(Metrics.READ));
+            LOGGER.info(Metrics.summary(Metrics.WRITE));
+            if (verify) {
+                verify(targetHost, copied);
+            }
+        } finally {
+            if (generator != null) {
+                generator.close();
+            }
+            source.shutdown();
+            target.shutdown();
+        }
+        return null;
+    }
+
+    private static ServerCnxnFactory startServer() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("zkcopy-benchmark").toFile();
+        dir.deleteOnExit();
+        ZooKeeperServer server = new ZooKeeperServer(dir, dir, TICK_TIME);
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0),
+                MAX_CONNECTIONS);
+        factory.startup(server);
+        return factory;
+    }
+
+    /**
+     * Create the source tree under {@code /source}, keeping up to
+     * {@link #CREATES_IN_FLIGHT} creates outstanding. A session processes
+     * requests in order, so parents always exist before their children.
+     */
+    private Generated generate(ZooKeeper zk) throws KeeperException, InterruptedException {
+        int fanout = fanout();
+        int size = payload >= 0 ? payload : "large-payload".equals(profile) ? LARGE_PAYLOAD : DEFAULT_PAYLOAD;
+        Random random = new Random(nodes);
+        final Semaphore permits = new Semaphore(CREATES_IN_FLIGHT);
+        final AtomicReference<KeeperException.Code> failure = new AtomicReference<>();
+        StringCallback callback = new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    failure.compareAndSet(null, KeeperException.Code.get(rc));
+                }
+                permits.release();
+            }
+        };
+        Generated generated = new Generated(size);
+        zk.create("/source", data(random, size), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        generated.add(false);
+        Deque<String> parents = new ArrayDeque<>();
+        parents.add("/source");
+        int depth = 0;
+        int count = 1;
+        while (count < nodes && failure.get() == null) {
+            String parent = parents.poll();
+            for (int i = 0; i < fanout && count < nodes; i++) {
+                String path = parent + "/node" + count++;
+                boolean ephemeral = "many-ephemeral".equals(profile) && i % 2 == 1;
+                permits.acquire();
+                zk.create(path, data(random, size), Ids.OPEN_ACL_UNSAFE,
+                        ephemeral ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT, callback, null);
+                generated.add(ephemeral);
+                if (!ephemeral) {
+                    parents.add(path);
+                }
+            }
+            if ("deep".equals(profile) && ++depth == DEPTH) {
+                // start the next chain under the root
+                parents.clear();
+                parents.add("/source");
+                depth = 0;
+            }
+        }
+        permits.acquire(CREATES_IN_FLIGHT);
+        if (failure.get() != null) {
+            throw KeeperException.create(failure.get());
+        }
+        return generated;
+    }
+
+    private int fanout() {
+        switch (profile) {
+            case "wide":
+                return WIDE_FANOUT;
+            case "deep":
+                return 1;
+            case "large-payload":
+            case "many-ephemeral":
+                return BALANCED_FANOUT;
+            default:
+                throw new IllegalArgumentException("Unknown profile " + profile);
+        }
+    }
+
+    private void verify(String targetHost, long expected) {
+        Node root = new Reader(targetHost + "/target", 1, SESSION_TIMEOUT).read();
+        long count = 0;
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            count++;
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        if (count == expected) {
+            LOGGER.info("Verified " + count + " target nodes");
+        } else {
+            LOGGER.error("Target has " + count + " nodes, expected " + expected);
+        }
+    }
+
+    private static byte[] data(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the heap pools' peaks, an upper bound of the peak
+     * heap since the pools peak at different times.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static final class Generated {
+        private final int size;
+        private long nodes;
+        private long ephemeral;
+
+        Generated(int size) {
+            this.size = size;
+        }
+
+        void add(boolean isEphemeral) {
+            nodes++;
+            if (isEphemeral) {
+                ephemeral++;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.ksprojects.zkcopy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building a source tree and computing the absolute path of every node, as
+ * done for each node written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeBenchmark {
+    @Param({"wide", "deep", "balanced"})
+    String shape;
+
+    @Param({"100000"})
+    int nodes;
+
+    @Param({"0"})
+    int payload;
+
+    private Node root;
+
+    @Setup
+    public void setUp() {
+        root = Trees.build("/source", shape, nodes, payload);
+    }
+
+    @Benchmark
+    public Node buildTree() {
+        return Trees.build("/source", shape, nodes, payload);
+    }
+
+    @Benchmark
+    public void absolutePaths(Blackhole blackhole) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            blackhole.consume(node.getAbsolutePath());
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    @Benchmark
+    public void childLookups(Blackhole blackhole) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            for (Node child : node.getChildren()) {
+                blackhole.consume(node.getChildrenNamed().contains(child.getPath()));
+                pending.push(child);
+            }
+        }
+    }
+}
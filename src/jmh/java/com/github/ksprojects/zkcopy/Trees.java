@@ -0,0 +1,93 @@
+package com.github.ksprojects.zkcopy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * Builds synthetic source trees for benchmarks.
+ */
+public final class Trees {
+    /**
+     * Length of the chains a deep tree is made of.
+     */
+    public static final int DEPTH = 100;
+    /**
+     * Number of children of every inner node of a balanced tree.
+     */
+    public static final int FANOUT = 10;
+
+    private Trees() {
+    }
+
+    /**
+     * Build a tree of about {@code nodes} nodes, all carrying
+     * {@code payload} bytes of data.
+     *
+     * @param shape
+     *            {@code wide} for children all directly under the root,
+     *            {@code deep} for chains of {@link #DEPTH} nodes under the
+     *            root, {@code balanced} for {@link #FANOUT} children per node
+     */
+    public static Node build(String rootPath, String shape, int nodes, int payload) {
+        return build(rootPath, shape, nodes, payload, nodes);
+    }
+
+    /**
+     * Build a tree with data generated from {@code seed}; trees built with
+     * the same arguments are identical.
+     *
+     * @see #build(String, String, int, int)
+     */
+    public static Node build(String rootPath, String shape, int nodes, int payload, long seed) {
+        Random random = new Random(seed);
+        Node root = new Node(rootPath);
+        root.setData(data(random, payload));
+        int count = 1;
+        switch (shape) {
+            case "wide":
+                root.reserveChildren(nodes - 1);
+                while (count < nodes) {
+                    root.appendChild(node(root, "node" + count++, random, payload));
+                }
+                break;
+            case "deep":
+                while (count < nodes) {
+                    Node parent = root;
+                    for (int depth = 0; depth < DEPTH && count < nodes; depth++) {
+                        Node child = node(parent, "node" + count++, random, payload);
+                        parent.appendChild(child);
+                        parent = child;
+                    }
+                }
+                break;
+            case "balanced":
+                Deque<Node> parents = new ArrayDeque<>();
+                parents.add(root);
+                while (count < nodes) {
+                    Node parent = parents.poll();
+                    for (int i = 0; i < FANOUT && count < nodes; i++) {
+                        Node child = node(parent, "node" + count++, random, payload);
+                        parent.appendChild(child);
+                        parents.add(child);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tree shape " + shape);
+        }
+        return root;
+    }
+
+    private static Node node(Node parent, String name, Random random, int payload) {
+        Node node = new Node(parent, name);
+        node.setData(data(random, payload));
+        return node;
+    }
+
+    private static byte[] data(Random random, int payload) {
+        byte[] data = new byte[payload];
+        random.nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of batching operations into size-limited transactions, per
+ * operation. Commits are discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(AutoCommitTransactionWrapperBenchmark.OPERATIONS)
+public class AutoCommitTransactionWrapperBenchmark {
+    static final int OPERATIONS = 10000;
+
+    @Param({"100", "1000"})
+    int batchSize;
+
+    @Param({"0", "1024", "65536"})
+    int payload;
+
+    private String[] paths;
+    private byte[] data;
+    private ZooKeeper zk;
+
+    @Setup
+    public void setUp() {
+        Logger.getLogger("com.github.ksprojects").setLevel(Level.WARN);
+        paths = new String[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            paths[i] = "/target/parent" + (i / 100) + "/node" + i;
+        }
+        data = new byte[payload];
+        zk = Targets.discarding();
+    }
+
+    @Benchmark
+    public List<OpResult> create() throws KeeperException, InterruptedException {
+        AutoCommitTransactionWrapper transaction = new AutoCommitTransactionWrapper(zk, batchSize);
+        for (String path : paths) {
+            transaction.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        return transaction.commit();
+    }
+
+    @Benchmark
+    public List<OpResult> setData() throws KeeperException, InterruptedException {
+        AutoCommitTransactionWrapper transaction = new AutoCommitTransactionWrapper(zk, batchSize);
+        for (String path : paths) {
+            transaction.setData(path, data, -1);
+        }
+        return transaction.commit();
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooKeeper;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Targets for writer benchmarks that accept transactions without a server,
+ * so only the work done on the client side is measured.
+ */
+final class Targets {
+    private Targets() {
+    }
+
+    /**
+     * Returns a session whose transactions collect their operations as usual
+     * and discard them on commit.
+     */
+    static ZooKeeper discarding() {
+        final ZooKeeper zk = mock(ZooKeeper.class);
+        when(zk.transaction()).thenAnswer(new Answer<Transaction>() {
+            @Override
+            public Transaction answer(InvocationOnMock invocation) {
+                return new Transaction(zk) {
+                    @Override
+                    public List<OpResult> commit() {
+                        return Collections.emptyList();
+                    }
+                };
+            }
+        });
+        return zk;
+    }
+}
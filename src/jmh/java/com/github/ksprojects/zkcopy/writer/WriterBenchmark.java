@@ -0,0 +1,112 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.DataDigest;
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.Trees;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Diffing a source tree against a prefetched target and queuing the
+ * resulting creates, updates and deletes. Commits are discarded, so this is
+ * the client-side cost of a copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+    private static final String TARGET = "/target";
+
+    @Param({"wide", "balanced"})
+    String shape;
+
+    @Param({"10000"})
+    int nodes;
+
+    @Param({"0", "1024"})
+    int payload;
+
+    /**
+     * {@code empty} creates every node, {@code identical} skips every node,
+     * {@code changed} updates every node and {@code superset} deletes a
+     * target subtree for every source node.
+     */
+    @Param({"empty", "identical", "changed", "superset"})
+    String target;
+
+    @Param({"1000"})
+    int batchSize;
+
+    private Node source;
+    private TargetIndex index;
+    private ZooKeeper zk;
+
+    @Setup
+    public void setUp() {
+        Logger.getLogger("com.github.ksprojects").setLevel(Level.WARN);
+        source = Trees.build("/source", shape, nodes, payload);
+        switch (target) {
+            case "empty":
+                index = new TargetIndex(null);
+                break;
+            case "identical":
+                index = new TargetIndex(digested(Trees.build(TARGET, shape, nodes, payload)));
+                break;
+            case "changed":
+                index = new TargetIndex(digested(Trees.build(TARGET, shape, nodes, payload, nodes + 1)));
+                break;
+            case "superset":
+                Node root = Trees.build(TARGET, shape, nodes, payload);
+                for (Node child : root.getChildren()) {
+                    child.appendChild(new Node(child, "deprecated"));
+                }
+                index = new TargetIndex(digested(root));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown target " + target);
+        }
+        zk = Targets.discarding();
+    }
+
+    @Benchmark
+    public boolean write() {
+        Writer writer = new Writer(zk, TARGET, source, true, true, -1, batchSize);
+        writer.setTargetIndex(index);
+        return writer.write();
+    }
+
+    /**
+     * Replace the data of every node by its digest, as a prefetched target
+     * holds it.
+     */
+    private static Node digested(Node root) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            node.setData(DataDigest.of(node.getData()));
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return root;
+    }
+}
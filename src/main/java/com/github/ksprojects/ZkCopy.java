@@ -1,11 +1,32 @@
 package com.github.ksprojects;
 
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.FootprintReport;
+import com.github.ksprojects.zkcopy.Journal;
 import com.github.ksprojects.zkcopy.LoggingWatcher;
 import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.PayloadStore;
+import com.github.ksprojects.zkcopy.SpillFile;
+import com.github.ksprojects.zkcopy.metrics.MetricsReporter;
+import com.github.ksprojects.zkcopy.reader.AsyncReader;
 import com.github.ksprojects.zkcopy.reader.Reader;
+import com.github.ksprojects.zkcopy.snapshot.SnapshotReader;
+import com.github.ksprojects.zkcopy.snapshot.SnapshotWriter;
+import com.github.ksprojects.zkcopy.writer.FanOut;
+import com.github.ksprojects.zkcopy.writer.Follower;
+import com.github.ksprojects.zkcopy.writer.ParallelWriter;
+import com.github.ksprojects.zkcopy.writer.TargetIndex;
+import com.github.ksprojects.zkcopy.writer.Throttle;
 import com.github.ksprojects.zkcopy.writer.Writer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -15,10 +36,17 @@ import picocli.CommandLine.Option;
 public class ZkCopy implements Callable<Void> {
 
     private static final Logger LOGGER = Logger.getLogger(ZkCopy.class);
+    private static final String FILE_PREFIX = "file:";
     private static final int DEFAULT_THREADS_NUMBER = 10;
     private static final boolean DEFAULT_COPY_ONLY = false;
     private static final boolean DEFAULT_IGNORE_EPHEMERAL_NODES = true;
     private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_BATCH_BYTES = 1000 * 1024;
+    private static final int DEFAULT_IN_FLIGHT = 1000;
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_WRITE_WORKERS = 1;
+    private static final int DEFAULT_COMMITS_IN_FLIGHT = 1;
+    private static final int DEFAULT_METRICS_INTERVAL = 10;
 
     @Option(names = "--help", usageHelp = true, description = "display this help and exit")
     boolean help;
@@ -26,14 +54,15 @@ public class ZkCopy implements Callable<Void> {
     @Option(names = { "-s", "--source" }, 
             paramLabel = "server:port/path", 
             required = true, 
-            description = "location of a source tree to copy")
+            description = "location of a source tree to copy, or file:<path> of a snapshot to copy from")
     String source;
 
     @Option(names = { "-t", "--target" }, 
             paramLabel = "server:port/path", 
             required = true, 
-            description = "target location")
-    String target;
+            description = "target location, or file:<path> to write a snapshot to; repeat to copy the tree "
+                        + "read once to several ZooKeeper targets concurrently")
+    List<String> targets;
 
     @Option(names = { "-w", "--workers" }, 
             description = "number of concurrent workers to copy data")
@@ -53,6 +82,18 @@ public class ZkCopy implements Callable<Void> {
     @Option(names = { "-m", "--mtime" },
             description = "Ignore nodes older than mtime")
     long mtime = -1;
+
+    @Option(names = { "--include" },
+            paramLabel = "<pattern>",
+            description = "copy only subtrees matching this glob, relative to the source path, e.g. "
+                        + "/brokers/**; repeatable")
+    List<String> includes;
+
+    @Option(names = { "--exclude" },
+            paramLabel = "<pattern>",
+            description = "neither read, write nor delete subtrees matching this glob or regex:<regex>; "
+                        + "repeatable, takes precedence over --include")
+    List<String> excludes;
     
     @Option(names = { "--timeout" }, description = "Session timeout in milliseconds")
     int sessionTimeout = 40000;
@@ -62,6 +103,126 @@ public class ZkCopy implements Callable<Void> {
                         + "Batch sizes are limited by the jute.maxbuffer server-side config, usually around 1 MB.")
     int batchSize = DEFAULT_BATCH_SIZE;
 
+    @Option(names = { "--batchBytes" },
+            description = "Also cut transactions before their serialized size exceeds this many bytes. "
+                        + "Keep it below the jute.maxbuffer server-side config.")
+    int batchBytes = DEFAULT_BATCH_BYTES;
+
+    @Option(names = { "-a", "--async" },
+            description = "read the source with the asynchronous ZooKeeper API; "
+                        + "--workers is then the number of source sessions",
+            arity = "0..1")
+    boolean async = false;
+
+    @Option(names = { "--inFlight" },
+            description = "maximum number of outstanding read requests per source session in --async "
+                        + "and --virtualThreads mode; before Java 24, virtual threads are also capped by "
+                        + "jdk.virtualThreadScheduler.maxPoolSize (256 by default) in total")
+    int inFlight = DEFAULT_IN_FLIGHT;
+
+    @Option(names = { "--virtualThreads" },
+            description = "read every node, and write every subtree, in a virtual thread of its own, multiplexed "
+                        + "over --workers source and --writeWorkers target sessions; needs Java 21, older JVMs "
+                        + "use a few platform threads per session instead, not used with --async; before Java 24 "
+                        + "every blocked read or commit pins a carrier thread, so at most "
+                        + "jdk.virtualThreadScheduler.maxPoolSize of them run at once",
+            arity = "0..1")
+    boolean virtualThreads = false;
+
+    @Option(names = { "--spreadReads" },
+            description = "pin each source session to one server of the connect string, round-robin, "
+                        + "to spread reads over the whole ensemble; sessions lose failover, so the copy "
+                        + "fails if a source server goes down",
+            arity = "0..1")
+    boolean spreadReads = false;
+
+    @Option(names = { "--stream" },
+            description = "write nodes while the source is still being read instead of reading the whole tree first",
+            arity = "0..1")
+    boolean stream = false;
+
+    @Option(names = { "--queueSize" },
+            description = "maximum number of nodes read but not yet written in --stream mode")
+    int queueSize = DEFAULT_QUEUE_SIZE;
+
+    @Option(names = { "--writeWorkers" },
+            description = "number of concurrent target sessions writing independent subtrees; "
+                        + "not used in --stream mode")
+    int writeWorkers = DEFAULT_WRITE_WORKERS;
+
+    @Option(names = { "--commitsInFlight" },
+            description = "number of transactions committed concurrently per target session")
+    int commitsInFlight = DEFAULT_COMMITS_IN_FLIGHT;
+
+    @Option(names = { "--maxOpsPerSecond" },
+            description = "maximum write operations per second on the target, 0 for no limit")
+    long maxOpsPerSecond = 0;
+
+    @Option(names = { "--maxBytesPerSecond" },
+            description = "maximum bytes written per second to the target, 0 for no limit")
+    long maxBytesPerSecond = 0;
+
+    @Option(names = { "--targetLatency" },
+            description = "adapt write rate and transaction size to keep target commits below this many "
+                        + "milliseconds, 0 to disable")
+    long targetLatency = 0;
+
+    @Option(names = { "--prefetch" },
+            description = "read the target tree up front, using --workers, instead of "
+                        + "querying the target for every node while writing",
+            arity = "0..1")
+    boolean prefetch = false;
+
+    @Option(names = { "--dedup" },
+            description = "hold identical node data in memory only once while reading the whole tree; "
+                        + "not used in --stream mode",
+            arity = "0..1")
+    boolean dedup = false;
+
+    @Option(names = { "--maxHeapData" },
+            description = "bytes of node data kept on the heap while reading the whole tree, the rest is "
+                        + "spilled to a memory-mapped temporary file; 0 for no limit, not used in --stream mode")
+    long maxHeapData = 0;
+
+    @Option(names = { "--checkpoint" },
+            paramLabel = "<file>",
+            description = "read and write only nodes that changed since the checkpoint in this file, "
+                        + "and update it after a successful copy; assumes nobody else modifies the target")
+    File checkpointFile;
+
+    @Option(names = { "--follow" },
+            description = "after copying, keep mirroring changes of the source to the target until stopped",
+            arity = "0..1")
+    boolean follow = false;
+
+    @Option(names = { "--journal" },
+            paramLabel = "<file>",
+            description = "record subtrees as they are committed to this file, so an interrupted copy can be "
+                        + "continued with --resume; the file is removed once the copy completes")
+    File journalFile;
+
+    @Option(names = { "--resume" },
+            description = "continue the copy recorded in the --journal file, skipping subtrees it already copied",
+            arity = "0..1")
+    boolean resume = false;
+
+    @Option(names = { "--metrics" },
+            paramLabel = "<prefix>",
+            description = "write operation latency histograms and read/write throughput to <prefix>.json "
+                        + "and <prefix>.prom (Prometheus text format)")
+    String metricsPrefix;
+
+    @Option(names = { "--metricsInterval" },
+            description = "seconds between metrics reports while copying, 0 to only report at the end")
+    int metricsInterval = DEFAULT_METRICS_INTERVAL;
+
+    private String target;
+    private Checkpoint checkpoint;
+    private Throttle throttle;
+    private Journal journal;
+    private SpillFile spill;
+    private PathFilter filter;
+
     /**
      * Main entry point - start ZkCopy.
      */
@@ -71,29 +232,393 @@ public class ZkCopy implements Callable<Void> {
 
     @Override
     public Void call() throws Exception {
+        try (MetricsReporter reporter = metricsPrefix == null ? null
+                : new MetricsReporter(metricsPrefix, metricsInterval);
+                SpillFile spillFile = maxHeapData > 0 ? new SpillFile(maxHeapData) : null) {
+            spill = spillFile;
+            copy();
+        }
+        return null;
+    }
+
+    private void copy() throws Exception {
         boolean removeDeprecatedNodes = !copyOnly;
         LOGGER.info("using " + workers + " concurrent workers to copy data");
+        LOGGER.info("using " + writeWorkers + " concurrent workers to write data");
         LOGGER.info("delete nodes = " + String.valueOf(removeDeprecatedNodes));
         LOGGER.info("ignore ephemeral nodes = " + String.valueOf(ignoreEphemeralNodes));
-        Reader reader = new Reader(source, workers, sessionTimeout);
-        Node root = reader.read();
-        if (root != null) {
-            ZooKeeper zookeeper = null;
+        target = targets.get(0);
+        if (virtualThreads && async) {
+            LOGGER.error("--virtualThreads and --async are alternatives, use one of them");
+            return;
+        }
+        if (PathFilter.firstRegex(includes) != null) {
+            LOGGER.error("--include " + PathFilter.firstRegex(includes) + " is a regex, which cannot tell "
+                    + "which nodes lead to a match; use globs to include, regex: only with --exclude");
+            return;
+        }
+        filter = PathFilter.of(includes, excludes);
+        if (filter != null && isFile(source)) {
+            LOGGER.error("--include and --exclude cannot be used with snapshot sources");
+            return;
+        }
+        if (targets.size() > 1) {
+            for (String location : targets) {
+                if (isFile(location)) {
+                    LOGGER.error("Snapshot files cannot be written together with other targets");
+                    return;
+                }
+            }
+            if (stream || isFile(source) || checkpointFile != null || follow || journalFile != null) {
+                LOGGER.error("--stream, snapshot sources, --checkpoint, --follow and --journal "
+                        + "support a single target only");
+                return;
+            }
+        }
+        if (checkpointFile != null || follow) {
+            if (isFile(source) || isFile(target)) {
+                LOGGER.error("--checkpoint and --follow cannot be used with snapshot files");
+                return;
+            }
+            checkpoint = checkpointFile != null ? Checkpoint.load(checkpointFile, source, target)
+                    : Checkpoint.inMemory(source, target);
+        }
+        throttle = newThrottle();
+        if (resume && journalFile == null) {
+            LOGGER.error("--resume requires --journal");
+            return;
+        }
+        if (journalFile != null) {
+            if (isFile(source) || isFile(target)) {
+                LOGGER.error("--journal cannot be used with snapshot files");
+                return;
+            }
+            journal = Journal.open(journalFile, source, target, resume);
+        }
+        if (isFile(target)) {
+            writeSnapshot();
+            return;
+        }
+        Thread journalHook = null;
+        if (journal != null) {
+            // keep the progress journaled so far when interrupted
+            journalHook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    journal.close();
+                }
+            }, "zkcopy-journal");
+            Runtime.getRuntime().addShutdownHook(journalHook);
+        }
+        try {
+            if (stream || isFile(source)) {
+                copyStreaming(removeDeprecatedNodes);
+            } else {
+                copyTree(removeDeprecatedNodes);
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+                try {
+                    Runtime.getRuntime().removeShutdownHook(journalHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+            }
+        }
+    }
+
+    private void copyTree(boolean removeDeprecatedNodes) throws IOException, InterruptedException, KeeperException {
+        Node root = readTree(source, checkpoint, journal);
+        if (root == null) {
+            LOGGER.error("FAILED");
+            return;
+        }
+        LOGGER.info(FootprintReport.of(root));
+        if (targets.size() > 1) {
+            fanOut(root, removeDeprecatedNodes);
+        } else if (writeTree(root, target, removeDeprecatedNodes, throttle)) {
+            copied();
+        }
+    }
+
+    /**
+     * Write the tree to every target at once, each with its own sessions and
+     * throttle.
+     */
+    private void fanOut(final Node root, final boolean removeDeprecatedNodes) throws InterruptedException {
+        LOGGER.info("Writing to " + targets.size() + " targets concurrently");
+        List<String> failed = FanOut.write(targets, new FanOut.Target() {
+            @Override
+            public boolean write(String location) throws IOException, KeeperException, InterruptedException {
+                return writeTree(root, location, removeDeprecatedNodes, newThrottle());
+            }
+        });
+        if (failed.isEmpty()) {
+            LOGGER.info("Copied to all " + targets.size() + " targets");
+        } else {
+            LOGGER.error("FAILED to copy to " + failed.size() + " of " + targets.size() + " targets: " + failed);
+        }
+    }
+
+    /**
+     * Write the tree read from the source to a single target. The tree itself
+     * is not modified, so several targets can be written at once.
+     *
+     * @return {@code true} if all nodes were written
+     */
+    private boolean writeTree(Node root, String location, boolean removeDeprecatedNodes, Throttle targetThrottle)
+            throws IOException, InterruptedException, KeeperException {
+        if (writeWorkers > 1 || virtualThreads) {
+            List<ZooKeeper> sessions = new ArrayList<>(writeWorkers);
             try {
-                zookeeper = new ZooKeeper(zkHost(target), sessionTimeout, new LoggingWatcher());
-                Writer writer = new Writer(zookeeper, zkPath(target), root, removeDeprecatedNodes, ignoreEphemeralNodes,
-                        mtime, batchSize);
-                writer.write();
+                for (int i = 0; i < writeWorkers; i++) {
+                    sessions.add(new ZooKeeper(zkHost(location), sessionTimeout, new LoggingWatcher()));
+                }
+                ParallelWriter writer = new ParallelWriter(sessions, zkPath(location), root, removeDeprecatedNodes,
+                        ignoreEphemeralNodes, mtime, batchSize);
+                writer.setBatchBytes(batchBytes);
+                writer.setCommitsInFlight(commitsInFlight);
+                writer.setTargetIndex(prefetchTarget(location, sessions.get(0)));
+                writer.setThrottle(targetThrottle);
+                writer.setJournal(journal);
+                writer.setPathFilter(filter);
+                writer.setVirtualThreads(virtualThreads);
+                return writer.write();
             } finally {
-                if (zookeeper != null) {
+                for (ZooKeeper zookeeper : sessions) {
                     zookeeper.close();
                 }
             }
-        } else {
-            LOGGER.error("FAILED");
+        }
+        ZooKeeper zookeeper = null;
+        try {
+            zookeeper = new ZooKeeper(zkHost(location), sessionTimeout, new LoggingWatcher());
+            Writer writer = new Writer(zookeeper, zkPath(location), root, removeDeprecatedNodes, ignoreEphemeralNodes,
+                    mtime, batchSize);
+            writer.setBatchBytes(batchBytes);
+            writer.setCommitsInFlight(commitsInFlight);
+            writer.setTargetIndex(prefetchTarget(location, zookeeper));
+            writer.setThrottle(targetThrottle);
+            writer.setJournal(journal);
+            writer.setPathFilter(filter);
+            return writer.write();
+        } finally {
+            if (zookeeper != null) {
+                zookeeper.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a throttle for one target if any limit is set, or {@code null}.
+     */
+    private Throttle newThrottle() {
+        if (maxOpsPerSecond > 0 || maxBytesPerSecond > 0 || targetLatency > 0) {
+            return new Throttle(maxOpsPerSecond, maxBytesPerSecond, targetLatency);
         }
         return null;
     }
+
+    private void copyStreaming(boolean removeDeprecatedNodes)
+            throws InterruptedException, IOException, KeeperException {
+        NodeStream nodes = new NodeStream(queueSize);
+        Thread readerThread = startReader(nodes);
+        ZooKeeper zookeeper = null;
+        try {
+            zookeeper = new ZooKeeper(zkHost(target), sessionTimeout, new LoggingWatcher());
+            Writer writer = new Writer(zookeeper, zkPath(target), removeDeprecatedNodes, ignoreEphemeralNodes,
+                    mtime, batchSize);
+            writer.setBatchBytes(batchBytes);
+            writer.setCommitsInFlight(commitsInFlight);
+            writer.setTargetIndex(prefetchTarget(target, zookeeper));
+            writer.setThrottle(throttle);
+            writer.setJournal(journal);
+            writer.setPathFilter(filter);
+            if (writer.write(nodes)) {
+                copied();
+            }
+        } finally {
+            // releases the reader if writing stopped early
+            nodes.abort();
+            readerThread.join();
+            if (zookeeper != null) {
+                zookeeper.close();
+            }
+        }
+    }
+
+    /**
+     * Write the source to a snapshot file instead of a ZooKeeper target.
+     */
+    private void writeSnapshot() throws InterruptedException, IOException {
+        if (isFile(source)) {
+            LOGGER.error("Source and target cannot both be snapshot files");
+            return;
+        }
+        SnapshotWriter writer = new SnapshotWriter(new File(target.substring(FILE_PREFIX.length())));
+        if (!stream) {
+            Node root = readTree(source, null, null);
+            if (root == null) {
+                LOGGER.error("FAILED");
+                return;
+            }
+            writer.write(root);
+            return;
+        }
+        NodeStream nodes = new NodeStream(queueSize);
+        Thread readerThread = startReader(nodes);
+        try {
+            writer.write(nodes);
+        } finally {
+            // releases the reader if writing stopped early
+            nodes.abort();
+            readerThread.join();
+        }
+    }
+
+    /**
+     * Start reading the source in the background, handing nodes over to
+     * {@code nodes}.
+     */
+    private Thread startReader(final NodeStream nodes) {
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean completed;
+                if (isFile(source)) {
+                    completed = new SnapshotReader(new File(source.substring(FILE_PREFIX.length()))).read(nodes);
+                } else if (async) {
+                    AsyncReader reader = new AsyncReader(source, workers, inFlight, sessionTimeout);
+                    reader.setCheckpoint(checkpoint);
+                    reader.setJournal(journal);
+                    reader.setSpreadReads(spreadReads);
+                    reader.setPathFilter(filter);
+                    completed = reader.read(nodes);
+                } else {
+                    Reader reader = new Reader(source, workers, sessionTimeout);
+                    reader.setCheckpoint(checkpoint);
+                    reader.setJournal(journal);
+                    reader.setSpreadReads(spreadReads);
+                    reader.setPathFilter(filter);
+                    reader.setVirtualThreads(virtualThreads ? inFlight : 0);
+                    completed = reader.read(nodes);
+                }
+                if (!completed) {
+                    LOGGER.error("FAILED");
+                }
+            }
+        }, "zkcopy-reader");
+        readerThread.start();
+        return readerThread;
+    }
+
+    private static boolean isFile(String location) {
+        return location.startsWith(FILE_PREFIX);
+    }
+
+    private Node readTree(String location, Checkpoint since, Journal completed) {
+        if (async) {
+            AsyncReader reader = new AsyncReader(location, workers, inFlight, sessionTimeout);
+            reader.setCheckpoint(since);
+            reader.setJournal(completed);
+            reader.setPayloadStore(dedup ? new PayloadStore(spill) : null);
+            reader.setSpillFile(spill);
+            reader.setSpreadReads(spreadReads);
+            reader.setPathFilter(filter);
+            return reader.read();
+        } else {
+            Reader reader = new Reader(location, workers, sessionTimeout);
+            reader.setCheckpoint(since);
+            reader.setJournal(completed);
+            reader.setPayloadStore(dedup ? new PayloadStore(spill) : null);
+            reader.setSpillFile(spill);
+            reader.setSpreadReads(spreadReads);
+            reader.setPathFilter(filter);
+            reader.setVirtualThreads(virtualThreads ? inFlight : 0);
+            return reader.read();
+        }
+    }
+
+    /**
+     * Drop the journal of the completed copy, persist what was copied if
+     * --checkpoint is set, and keep following the source if --follow is set.
+     */
+    private void copied() throws IOException, InterruptedException {
+        if (journal != null) {
+            journal.delete();
+        }
+        if (checkpointFile != null) {
+            checkpoint.save();
+        }
+        if (follow) {
+            follow();
+        }
+    }
+
+    private void follow() throws IOException, InterruptedException {
+        ZooKeeper zookeeper = new ZooKeeper(zkHost(target), sessionTimeout, new LoggingWatcher());
+        try {
+            final Follower follower = new Follower(zkHost(source), zkPath(source), zookeeper, zkPath(target),
+                    checkpoint, !copyOnly, ignoreEphemeralNodes, batchSize, sessionTimeout);
+            follower.setBatchBytes(batchBytes);
+            follower.setThrottle(throttle);
+            follower.setPathFilter(filter);
+            Thread shutdownHook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        follower.stop();
+                        if (checkpointFile != null) {
+                            checkpoint.save();
+                        }
+                    } catch (InterruptedException | IOException e) {
+                        LOGGER.error("Could not stop following cleanly", e);
+                    }
+                }
+            }, "zkcopy-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            if (!follower.follow()) {
+                LOGGER.error("FAILED");
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+            }
+        } finally {
+            zookeeper.close();
+        }
+    }
+
+    /**
+     * Read the target tree up front if --prefetch is set.
+     *
+     * @return index of the target tree, or {@code null} if nodes should be
+     *         looked up on the target one by one
+     */
+    private TargetIndex prefetchTarget(String location, ZooKeeper zookeeper)
+            throws KeeperException, InterruptedException {
+        if (!prefetch) {
+            return null;
+        }
+        if (zookeeper.exists(zkPath(location), false) == null) {
+            return new TargetIndex(null);
+        }
+        LOGGER.info("Prefetching target tree " + location);
+        // the whole target, with digests instead of payloads, whatever the source settings
+        Reader reader = new Reader(location, workers, sessionTimeout);
+        reader.setSpreadReads(spreadReads);
+        reader.setTarget(true);
+        Node root = reader.read();
+        if (root == null) {
+            LOGGER.warn("Could not prefetch target tree, looking up target nodes one by one");
+            return null;
+        }
+        TargetIndex index = new TargetIndex(root);
+        LOGGER.info("Prefetched " + index.size() + " target nodes");
+        return index;
+    }
     
     
     /**
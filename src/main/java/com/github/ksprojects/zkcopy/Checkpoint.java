@@ -0,0 +1,196 @@
+package com.github.ksprojects.zkcopy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Source state recorded by the last successful copy, used to copy only what
+ * changed since.
+ *
+ * <p>For every source node the checkpoint keeps the zxid of its last data
+ * change ({@code mzxid}), the zxid of its last children change
+ * ({@code pzxid}) and the names of its children. A reader comparing these
+ * with a fresh {@code exists()} stat can skip fetching data that did not change
+ * and listing children whose membership did not change.
+ *
+ * <p>Skipped nodes are not written either, so the target is assumed to be
+ * modified only by zkcopy between two runs with the same checkpoint.
+ */
+public final class Checkpoint {
+    private static final Logger LOGGER = Logger.getLogger(Checkpoint.class);
+    private static final byte[] MAGIC = {'Z', 'K', 'C', 'K', 'P', 'T'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File file;
+    private final String source;
+    private final String target;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> recorded = new ConcurrentHashMap<>();
+
+    private Checkpoint(File file, String source, String target, Map<String, Entry> previous) {
+        this.file = file;
+        this.source = source;
+        this.target = target;
+        this.previous = previous;
+    }
+
+    /**
+     * Create a checkpoint that is only kept in memory, to track what has been
+     * copied within a single run.
+     */
+    public static Checkpoint inMemory(String source, String target) {
+        return new Checkpoint(null, source, target, Collections.<String, Entry>emptyMap());
+    }
+
+    /**
+     * Load the checkpoint of a copy from {@code source} to {@code target}. A
+     * missing file, or one written for another source or target, gives an
+     * empty checkpoint so everything is copied.
+     */
+    public static Checkpoint load(File file, String source, String target) throws IOException {
+        Map<String, Entry> previous = Collections.emptyMap();
+        if (!file.exists()) {
+            LOGGER.info("No checkpoint at " + file + ", copying everything");
+            return new Checkpoint(file, source, target, previous);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a zkcopy checkpoint");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            String checkpointSource = in.readUTF();
+            String checkpointTarget = in.readUTF();
+            if (!checkpointSource.equals(source) || !checkpointTarget.equals(target)) {
+                LOGGER.warn("Checkpoint " + file + " was written for " + checkpointSource + " -> "
+                        + checkpointTarget + ", copying everything");
+                return new Checkpoint(file, source, target, previous);
+            }
+            int size = in.readInt();
+            previous = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                String path = in.readUTF();
+                long mzxid = in.readLong();
+                long pzxid = in.readLong();
+                String[] children = new String[in.readInt()];
+                for (int j = 0; j < children.length; j++) {
+                    children[j] = in.readUTF().intern();
+                }
+                previous.put(path, new Entry(mzxid, pzxid, Arrays.asList(children)));
+            }
+        }
+        LOGGER.info("Loaded checkpoint of " + previous.size() + " nodes from " + file);
+        return new Checkpoint(file, source, target, previous);
+    }
+
+    /**
+     * Returns the state of a source node at the last checkpoint, or
+     * {@code null} if it was not copied then.
+     */
+    public Entry previous(String path) {
+        return previous.get(path);
+    }
+
+    /**
+     * Returns the state of a source node as recorded in this run, or
+     * {@code null} if it was not read.
+     */
+    public Entry current(String path) {
+        return recorded.get(path);
+    }
+
+    /**
+     * Record the state of a source node that has been read. Safe to call from
+     * several reader threads.
+     */
+    public void record(String path, long mzxid, long pzxid, List<String> children) {
+        recorded.put(path, new Entry(mzxid, pzxid, children));
+    }
+
+    /**
+     * Drop a node that was removed from the source.
+     */
+    public void forget(String path) {
+        recorded.remove(path);
+    }
+
+    /**
+     * Replace the checkpoint file with the recorded state. Only call this once
+     * the copy has completed, the file is written next to it and renamed so an
+     * interrupted save keeps the previous checkpoint.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("In-memory checkpoint cannot be saved");
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(source);
+            out.writeUTF(target);
+            out.writeInt(recorded.size());
+            for (Map.Entry<String, Entry> node : recorded.entrySet()) {
+                Entry entry = node.getValue();
+                out.writeUTF(node.getKey());
+                out.writeLong(entry.mzxid);
+                out.writeLong(entry.pzxid);
+                out.writeInt(entry.children.size());
+                for (String child : entry.children) {
+                    out.writeUTF(child);
+                }
+            }
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not replace checkpoint " + file);
+        }
+        LOGGER.info("Saved checkpoint of " + recorded.size() + " nodes to " + file);
+    }
+
+    /**
+     * State of a single source node.
+     */
+    public static final class Entry {
+        private final long mzxid;
+        private final long pzxid;
+        private final List<String> children;
+
+        Entry(long mzxid, long pzxid, List<String> children) {
+            this.mzxid = mzxid;
+            this.pzxid = pzxid;
+            this.children = children;
+        }
+
+        public long getMzxid() {
+            return mzxid;
+        }
+
+        public long getPzxid() {
+            return pzxid;
+        }
+
+        public List<String> getChildren() {
+            return children;
+        }
+    }
+}
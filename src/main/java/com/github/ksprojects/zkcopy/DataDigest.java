@@ -0,0 +1,30 @@
+package com.github.ksprojects.zkcopy;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 digests of znode payloads, kept instead of the payloads themselves
+ * where data only has to be compared, never written.
+ *
+ * <p>{@code null} and empty data have the same digest, since both mean the
+ * node has no data.
+ */
+public final class DataDigest {
+    private static final byte[] EMPTY = new byte[0];
+
+    private DataDigest() {
+    }
+
+    /**
+     * Returns the digest of {@code data}, which may be {@code null}.
+     */
+    public static byte[] of(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data == null ? EMPTY : data);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform implements MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
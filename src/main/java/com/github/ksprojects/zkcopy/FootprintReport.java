@@ -0,0 +1,73 @@
+package com.github.ksprojects.zkcopy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Estimates how much heap a tree of {@link Node}s takes, split into znode data
+ * and the overhead of the tree structure itself.
+ */
+public final class FootprintReport {
+    private long nodes;
+    private long dataBytes;
+    private long spilledBytes;
+    private long structureBytes;
+    private long nameBytes;
+
+    private FootprintReport() {
+    }
+
+    /**
+     * Walk the tree below {@code root} and collect its footprint.
+     */
+    public static FootprintReport of(Node root) {
+        FootprintReport report = new FootprintReport();
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            report.nodes++;
+            report.structureBytes += node.estimatedSize();
+            // a node's name is the same string as its parent's child name, counted once
+            report.nameBytes += 40 + 2L * node.getPath().length();
+            if (node.isDataSpilled()) {
+                report.spilledBytes += node.getDataLength();
+            } else if (node.getData() != null) {
+                // upper bound too, data shared by --dedup is counted every time
+                report.dataBytes += 16 + node.getDataLength();
+            }
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return report;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    public long getStructureBytes() {
+        return structureBytes + nameBytes;
+    }
+
+    @Override
+    public String toString() {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        return "Tree of " + nodes + " nodes: data " + megabytes(dataBytes) + " MB"
+                + (spilledBytes == 0 ? "" : " (" + megabytes(spilledBytes) + " MB more spilled to disk)")
+                + ", structure ~"
+                + megabytes(getStructureBytes()) + " MB (" + (nodes == 0 ? 0 : getStructureBytes() / nodes)
+                + " bytes/node, names " + megabytes(nameBytes) + " MB at most), heap used "
+                + megabytes(heapUsed) + " MB of " + megabytes(runtime.maxMemory()) + " MB";
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+}
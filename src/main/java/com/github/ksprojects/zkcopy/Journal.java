@@ -0,0 +1,283 @@
+package com.github.ksprojects.zkcopy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Progress of a copy, kept so an interrupted copy can be resumed.
+ *
+ * <p>Once every operation of a subtree has been committed to the target, the
+ * subtree is appended to the journal file. A resumed copy neither reads nor
+ * writes journaled subtrees again, but still knows their names so they are
+ * not deleted as deprecated. Subtrees are identified by their parent's path
+ * relative to the copied root ({@code ""} for the root itself) and their
+ * name, so the same journal applies to source and target paths.
+ *
+ * <p>Records are buffered and flushed on the first record written a second
+ * or more after the previous flush, and when the journal is closed; a record
+ * torn by a crash is ignored when the journal is loaded, so at worst the
+ * progress recorded since the last flush is copied again. A resumed copy cuts
+ * the torn record off before appending to the journal.
+ */
+public final class Journal {
+    private static final Logger LOGGER = Logger.getLogger(Journal.class);
+    private static final byte[] MAGIC = {'Z', 'K', 'J', 'R', 'N', 'L'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final File file;
+    private final Map<String, Set<String>> completed;
+    private final int loaded;
+    private DataOutputStream out;
+    private long lastFlush = System.nanoTime();
+    private int recorded;
+
+    private Journal(File file, Map<String, Set<String>> completed, int loaded) {
+        this.file = file;
+        this.completed = completed;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Open the journal of a copy from {@code source} to {@code target}.
+     *
+     * @param resume
+     *            {@code true} to skip subtrees completed by a previous run,
+     *            {@code false} to start over with an empty journal. A missing
+     *            journal, or one written for another source or target, is
+     *            started over either way.
+     */
+    public static Journal open(File file, String source, String target, boolean resume) throws IOException {
+        Map<String, Set<String>> completed = Collections.emptyMap();
+        int count = 0;
+        long end = -1;
+        if (resume && file.exists()) {
+            completed = new HashMap<>();
+            end = load(file, source, target, completed);
+            for (Set<String> names : completed.values()) {
+                count += names.size();
+            }
+        } else if (resume) {
+            LOGGER.info("No journal at " + file + ", copying everything");
+        }
+        Journal journal = new Journal(file, completed, count);
+        if (count > 0) {
+            LOGGER.info("Resuming copy, skipping " + count + " subtrees completed according to " + file);
+            // keep the journal, only append after its last complete record
+            FileOutputStream stream = new FileOutputStream(file, true);
+            try {
+                if (stream.getChannel().size() > end) {
+                    LOGGER.warn("Dropping a record of " + file + " torn by a crash");
+                    stream.getChannel().truncate(end);
+                }
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            journal.out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        } else {
+            journal.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            journal.out.write(MAGIC);
+            journal.out.writeInt(VERSION);
+            journal.out.writeUTF(source);
+            journal.out.writeUTF(target);
+            journal.out.flush();
+        }
+        return journal;
+    }
+
+    /**
+     * Read the subtrees completed according to a journal into
+     * {@code completed}.
+     *
+     * @return offset of the end of the last complete record, or -1 if the
+     *         journal was written for another copy
+     */
+    private static long load(File file, String source, String target, Map<String, Set<String>> completed)
+            throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE));
+        long end;
+        try (DataInputStream in = new DataInputStream(counter)) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a zkcopy journal");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported journal version " + version);
+            }
+            String journalSource = in.readUTF();
+            String journalTarget = in.readUTF();
+            if (!journalSource.equals(source) || !journalTarget.equals(target)) {
+                LOGGER.warn("Journal " + file + " was written for " + journalSource + " -> " + journalTarget
+                        + ", copying everything");
+                completed.clear();
+                return -1;
+            }
+            end = counter.getCount();
+            while (true) {
+                String parent;
+                String name;
+                try {
+                    parent = in.readUTF();
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    // end of the journal, or a record torn by a crash
+                    break;
+                }
+                Set<String> names = completed.get(parent);
+                if (names == null) {
+                    names = new HashSet<>();
+                    completed.put(parent, names);
+                }
+                names.add(name.intern());
+                end = counter.getCount();
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the path of a node relative to the copied root.
+     */
+    public static String relativePath(String root, String path) {
+        if (path.equals(root)) {
+            return "";
+        }
+        return "/".equals(root) ? path : path.substring(root.length());
+    }
+
+    /**
+     * Returns {@code true} if the subtree {@code name} under the node at
+     * {@code parent}, relative to the copied root, was completed by the run
+     * being resumed.
+     */
+    public boolean isCompleted(String parent, String name) {
+        Set<String> names = completed.get(parent);
+        return names != null && names.contains(name);
+    }
+
+    /**
+     * Record a subtree, given by its path relative to the copied root, whose
+     * operations have all been committed. Safe to call from several threads.
+     */
+    public synchronized void completed(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        if (slash < 0 || out == null) {
+            // the root, which completes the copy
+            return;
+        }
+        try {
+            out.writeUTF(relativePath.substring(0, slash));
+            out.writeUTF(relativePath.substring(slash + 1));
+            recorded++;
+            long now = System.nanoTime();
+            if (now - lastFlush >= FLUSH_INTERVAL) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not write journal " + file + ", progress is no longer recorded", e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Flush and close the journal, keeping it for a later {@code --resume}.
+     */
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not write journal " + file, e);
+        }
+        out = null;
+        LOGGER.info("Journaled " + recorded + " completed subtrees to " + file + " (" + (loaded + recorded)
+                + " in total)");
+    }
+
+    /**
+     * Close and remove the journal once the copy has completed.
+     */
+    public synchronized void delete() {
+        closeQuietly();
+        if (!file.delete()) {
+            LOGGER.warn("Could not delete journal " + file);
+        }
+    }
+
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing more to record
+        }
+        out = null;
+    }
+
+    /**
+     * Counts the bytes read, to find where the last complete record ends.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -1,25 +1,43 @@
 package com.github.ksprojects.zkcopy;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
+/**
+ * A znode read from the source.
+ *
+ * <p>Nodes are kept small since trees may have millions of them: children and
+ * their names are held in plain arrays, and absolute paths are built on
+ * demand instead of being stored.
+ */
 public class Node {
-    private final List<Node> children;
-    private final Set<String> childrenNames;
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private Node[] children = NO_CHILDREN;
+    private int childrenCount;
+    private String[] childrenNames = NO_NAMES;
+    private int childrenNamesCount;
+    private boolean childrenNamesSorted = true;
     private Node parent;
     private String path;
     private byte[] data;
+    private SpillFile.Region spilledData;
     private boolean isEphemeral;
+    private boolean dataUnchanged;
+    private boolean childrenUnchanged;
     private long mtime;
 
     /**
      * Create new root node instance for a given path.
      */
     public Node(String path) {
-        children = new LinkedList<Node>();
-        childrenNames = new HashSet<String>();
         parent = null;
         this.path = path;
         data = null;
@@ -30,8 +48,6 @@ public class Node {
      * Create new child node.
      */
     public Node(Node parent, String path) {
-        children = new LinkedList<Node>();
-        childrenNames = new HashSet<String>();
         this.parent = parent;
         this.path = path;
         data = null;
@@ -41,17 +57,54 @@ public class Node {
         return parent;
     }
 
+    /**
+     * Make room for the given number of children, so appending them does not
+     * grow the arrays step by step. The children array itself is allocated on
+     * the first {@link #appendChild(Node)}, with the reserved capacity.
+     */
+    public void reserveChildren(int count) {
+        if (childrenNames.length < childrenNamesCount + count) {
+            childrenNames = Arrays.copyOf(childrenNames, childrenNamesCount + count);
+        }
+    }
+
+    /**
+     * Append a child node.
+     */
     public void appendChild(Node child) {
-        children.add(child);
-        childrenNames.add(child.getPath());
+        if (children.length == childrenCount) {
+            children = Arrays.copyOf(children, Math.max(childrenNames.length, grow(childrenCount)));
+        }
+        children[childrenCount++] = child;
+        appendChildName(child.getPath());
+    }
+
+    /**
+     * Record the name of a child without keeping a reference to it, so the
+     * child can be garbage collected once it has been written.
+     */
+    public void appendChildName(String name) {
+        if (childrenNames.length == childrenNamesCount) {
+            childrenNames = Arrays.copyOf(childrenNames, grow(childrenNamesCount));
+        }
+        childrenNames[childrenNamesCount++] = name;
+        childrenNamesSorted = false;
+    }
+
+    private static int grow(int size) {
+        return size < 4 ? 4 : size + (size >> 1);
     }
 
     public List<Node> getChildren() {
-        return children;
+        return new Children();
     }
 
+    /**
+     * Returns a read-only view of the children names. Lookups use binary search
+     * over the names, which are sorted on first use.
+     */
     public Set<String> getChildrenNamed() {
-        return childrenNames;
+        return new ChildrenNames();
     }
 
     /**
@@ -60,13 +113,24 @@ public class Node {
     public String getAbsolutePath() {
         if (parent == null) { // root
             return path;
-        } else {
-            if ("/".equals(parent.getAbsolutePath())) { // parent is root
-                return parent.getAbsolutePath() + path;
-            } else {
-                return parent.getAbsolutePath() + "/" + path;
-            }
         }
+        Node root = this;
+        int length = 0;
+        while (root.parent != null) {
+            length += root.path.length() + 1;
+            root = root.parent;
+        }
+        // the separator of the first level replaces a root of "/"
+        int rootLength = "/".equals(root.path) ? 0 : root.path.length();
+        char[] chars = new char[rootLength + length];
+        int position = chars.length;
+        for (Node node = this; node.parent != null; node = node.parent) {
+            position -= node.path.length();
+            node.path.getChars(0, node.path.length(), chars, position);
+            chars[--position] = '/';
+        }
+        root.path.getChars(0, rootLength, chars, 0);
+        return new String(chars);
     }
 
     public String getPath() {
@@ -77,12 +141,39 @@ public class Node {
         this.path = path;
     }
 
+    /**
+     * Returns the data of this node, copied back from the {@link SpillFile}
+     * on every call if it was spilled.
+     */
     public byte[] getData() {
-        return data;
+        return spilledData == null ? data : spilledData.read();
     }
 
     public void setData(byte[] data) {
         this.data = data;
+        spilledData = null;
+    }
+
+    void setSpilledData(SpillFile.Region region) {
+        data = null;
+        spilledData = region;
+    }
+
+    /**
+     * Returns the length of the data, without reading spilled data back.
+     */
+    public int getDataLength() {
+        if (spilledData != null) {
+            return spilledData.length();
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    /**
+     * Returns {@code true} if the data was spilled to a {@link SpillFile}.
+     */
+    public boolean isDataSpilled() {
+        return spilledData != null;
     }
 
     public boolean isEphemeral() {
@@ -97,8 +188,106 @@ public class Node {
         return mtime;
     }
 
-    
+
     public void setMtime(long mtime) {
         this.mtime = mtime;
     }
+
+    /**
+     * Returns {@code true} if data did not change since the last
+     * {@link Checkpoint} and was therefore not read.
+     */
+    public boolean isDataUnchanged() {
+        return dataUnchanged;
+    }
+
+    public void setDataUnchanged(boolean dataUnchanged) {
+        this.dataUnchanged = dataUnchanged;
+    }
+
+    /**
+     * Returns {@code true} if no child was added or removed since the last
+     * {@link Checkpoint}.
+     */
+    public boolean isChildrenUnchanged() {
+        return childrenUnchanged;
+    }
+
+    public void setChildrenUnchanged(boolean childrenUnchanged) {
+        this.childrenUnchanged = childrenUnchanged;
+    }
+
+    /**
+     * Estimated heap used by this node's own structures, excluding data,
+     * children and the shared name strings.
+     */
+    long estimatedSize() {
+        // object header and fields, then the two arrays and the location of spilled data
+        return 56 + (children.length == 0 ? 0 : 16 + 4L * children.length)
+                + (childrenNames.length == 0 ? 0 : 16 + 4L * childrenNames.length)
+                + (spilledData == null ? 0 : 24);
+    }
+
+    private synchronized String[] sortedNames() {
+        if (!childrenNamesSorted) {
+            Arrays.sort(childrenNames, 0, childrenNamesCount);
+            childrenNamesSorted = true;
+        }
+        return childrenNames;
+    }
+
+    private final class Children extends AbstractList<Node> implements RandomAccess {
+        @Override
+        public Node get(int index) {
+            if (index >= childrenCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childrenCount);
+            }
+            return children[index];
+        }
+
+        @Override
+        public int size() {
+            return childrenCount;
+        }
+    }
+
+    private final class ChildrenNames extends AbstractSet<String> {
+        @Override
+        public boolean contains(Object name) {
+            if (!(name instanceof String)) {
+                return false;
+            }
+            return Arrays.binarySearch(sortedNames(), 0, childrenNamesCount, name) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return childrenNamesCount;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < childrenNamesCount;
+                }
+
+                @Override
+                public String next() {
+                    if (index >= childrenNamesCount) {
+                        throw new NoSuchElementException();
+                    }
+                    return childrenNames[index++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,84 @@
+package com.github.ksprojects.zkcopy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-off of nodes from a reader to a writer.
+ *
+ * <p>Readers {@link #put(Node)} every node once its data and the names of its
+ * children are known, and always before any of its children, so a consumer can
+ * write nodes in arrival order. {@link #put(Node)} blocks while the queue is
+ * full, which bounds the number of nodes held in memory.
+ */
+public final class NodeStream {
+    private static final Node END = new Node("");
+
+    private final BlockingQueue<Node> queue;
+    private volatile boolean failed = false;
+    private volatile boolean aborted = false;
+
+    /**
+     * Create new stream holding at most {@code capacity} nodes.
+     */
+    public NodeStream(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Hand a node over to the consumer, waiting for free space if necessary.
+     *
+     * @return {@code false} if the consumer has given up and the node was dropped
+     */
+    public boolean put(Node node) throws InterruptedException {
+        while (!aborted) {
+            if (queue.offer(node, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Signal that all nodes have been put.
+     */
+    public void close() throws InterruptedException {
+        put(END);
+    }
+
+    /**
+     * Signal that reading failed and no more nodes will follow.
+     */
+    public void fail() throws InterruptedException {
+        failed = true;
+        put(END);
+    }
+
+    /**
+     * Called by the consumer when it stops taking nodes, so blocked producers
+     * are released.
+     */
+    public void abort() {
+        aborted = true;
+        queue.clear();
+    }
+
+    /**
+     * Take the next node, waiting for one if necessary.
+     *
+     * @return next node, or {@code null} once the stream is closed or failed
+     */
+    public Node take() throws InterruptedException {
+        Node node = queue.take();
+        return node == END ? null : node;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+}
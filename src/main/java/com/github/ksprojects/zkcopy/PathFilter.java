@@ -0,0 +1,263 @@
+package com.github.ksprojects.zkcopy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which subtrees are copied, from include and exclude patterns.
+ *
+ * <p>Patterns match paths relative to the copied root, such as
+ * {@code /brokers/topics}, so the same filter applies to source and target.
+ * A path matching a pattern stands for its whole subtree. Globs are the
+ * default: {@code *} and {@code ?} match within a single name, {@code **}
+ * matches any number of names, and a glob not starting with {@code /} may
+ * match at any depth. Exclude patterns starting with {@code regex:} are
+ * regular expressions matched against whole paths.
+ *
+ * <p>Excluded subtrees are neither read nor written, and never deleted from
+ * the target. With includes, only included subtrees and the nodes leading to
+ * them are copied. Globs are compiled into a trie of names, so whether a
+ * path may still lead to an include is known without listing anything
+ * below it. A regex cannot tell that, so it would have to keep every node
+ * as a possible ancestor of a match; includes are therefore globs only.
+ */
+public final class PathFilter {
+    private static final String REGEX = "regex:";
+
+    private final Patterns includes;
+    private final Patterns excludes;
+
+    private PathFilter(Patterns includes, Patterns excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * Returns a filter for the given patterns, or {@code null} if there are
+     * none.
+     *
+     * @throws IllegalArgumentException
+     *             if an include is a regex
+     */
+    public static PathFilter of(List<String> includes, List<String> excludes) {
+        if ((includes == null || includes.isEmpty()) && (excludes == null || excludes.isEmpty())) {
+            return null;
+        }
+        String regex = firstRegex(includes);
+        if (regex != null) {
+            throw new IllegalArgumentException("Include " + regex + " is a regex, only globs can be included");
+        }
+        return new PathFilter(Patterns.compile(includes), Patterns.compile(excludes));
+    }
+
+    /**
+     * Returns the first pattern that is a regex, or {@code null} if all are
+     * globs.
+     */
+    public static String firstRegex(List<String> patterns) {
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                if (pattern.startsWith(REGEX)) {
+                    return pattern;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the node at {@code relativePath}, as returned
+     * by {@link Journal#relativePath(String, String)}, is copied. The copied
+     * root itself always is.
+     */
+    public boolean accepts(String relativePath) {
+        if (relativePath.isEmpty()) {
+            return true;
+        }
+        if (excludes.match(relativePath) == Match.SUBTREE) {
+            return false;
+        }
+        return includes.isEmpty() || includes.match(relativePath) != Match.NONE;
+    }
+
+    /**
+     * Returns {@code true} if the child {@code name} of the node at
+     * {@code parentPath}, relative to the copied root, is copied.
+     */
+    public boolean accepts(String parentPath, String name) {
+        return accepts(parentPath + "/" + name);
+    }
+
+    private enum Match {
+        /** The path is in the subtree of a match. */
+        SUBTREE,
+        /** A descendant of the path may match. */
+        ANCESTOR,
+        NONE
+    }
+
+    /**
+     * Globs as a trie of names, plus regular expressions.
+     */
+    private static final class Patterns {
+        private final State root = new State();
+        private final List<Pattern> regexes = new ArrayList<>();
+        private boolean empty = true;
+
+        static Patterns compile(List<String> patterns) {
+            Patterns compiled = new Patterns();
+            if (patterns == null) {
+                return compiled;
+            }
+            for (String pattern : patterns) {
+                compiled.empty = false;
+                if (pattern.startsWith(REGEX)) {
+                    compiled.regexes.add(Pattern.compile(pattern.substring(REGEX.length())));
+                } else {
+                    compiled.add(pattern);
+                }
+            }
+            return compiled;
+        }
+
+        private void add(String glob) {
+            State state = root;
+            if (!glob.startsWith("/")) {
+                state = state.anyDepth();
+            }
+            for (String name : glob.split("/")) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                state = "**".equals(name) ? state.anyDepth() : state.child(name);
+            }
+            state.terminal = true;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Walk the trie along the names of {@code path}, with every state a
+         * prefix of the path can be in.
+         */
+        Match match(String path) {
+            Set<State> states = new HashSet<>();
+            root.closure(states);
+            int start = 1;
+            while (start <= path.length() && (!states.isEmpty() || !regexes.isEmpty())) {
+                int end = path.indexOf('/', start);
+                if (end < 0) {
+                    end = path.length();
+                }
+                String name = path.substring(start, end);
+                Set<State> next = new HashSet<>();
+                for (State state : states) {
+                    state.step(name, next);
+                }
+                states = next;
+                for (State state : states) {
+                    if (state.terminal) {
+                        return Match.SUBTREE;
+                    }
+                }
+                if (matchesRegex(path.substring(0, end))) {
+                    return Match.SUBTREE;
+                }
+                start = end + 1;
+            }
+            // regexes only exclude, so only the trie tells whether a descendant may match
+            return states.isEmpty() ? Match.NONE : Match.ANCESTOR;
+        }
+
+        private boolean matchesRegex(String prefix) {
+            for (Pattern regex : regexes) {
+                if (regex.matcher(prefix).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Trie node: the names matched so far by some glob.
+     */
+    private static final class State {
+        private final Map<String, State> literals = new HashMap<>();
+        private final Map<String, State> wildcards = new LinkedHashMap<>();
+        private final Map<String, Pattern> wildcardPatterns = new HashMap<>();
+        private State anyDepth;
+        // reached by **, so any further name stays here
+        private boolean loops;
+        private boolean terminal;
+
+        State child(String name) {
+            boolean wildcard = name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+            Map<String, State> children = wildcard ? wildcards : literals;
+            State child = children.get(name);
+            if (child == null) {
+                child = new State();
+                children.put(name, child);
+                if (wildcard) {
+                    wildcardPatterns.put(name, Pattern.compile(globToRegex(name)));
+                }
+            }
+            return child;
+        }
+
+        State anyDepth() {
+            if (anyDepth == null) {
+                anyDepth = new State();
+                anyDepth.loops = true;
+            }
+            return anyDepth;
+        }
+
+        /**
+         * Add this state and those reachable without consuming a name, that
+         * is by {@code **} matching no name at all.
+         */
+        void closure(Set<State> states) {
+            if (states.add(this) && anyDepth != null) {
+                anyDepth.closure(states);
+            }
+        }
+
+        void step(String name, Set<State> next) {
+            if (loops) {
+                closure(next);
+            }
+            State literal = literals.get(name);
+            if (literal != null) {
+                literal.closure(next);
+            }
+            for (Map.Entry<String, State> wildcard : wildcards.entrySet()) {
+                if (wildcardPatterns.get(wildcard.getKey()).matcher(name).matches()) {
+                    wildcard.getValue().closure(next);
+                }
+            }
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
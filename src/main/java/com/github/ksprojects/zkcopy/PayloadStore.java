@@ -0,0 +1,197 @@
+package com.github.ksprojects.zkcopy;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store of znode payloads, so nodes with the same data
+ * share a single array.
+ *
+ * <p>Trees often hold many identical payloads: empty markers, repeated
+ * configuration, lock and leader data. Payloads are looked up by their
+ * content hash and compared in full, so distinct payloads are never merged.
+ * Shared arrays must not be modified.
+ *
+ * <p>The store keeps every distinct payload reachable, so it is meant for
+ * reading a whole tree, not for streaming nodes that are released once
+ * written. With a {@link SpillFile}, distinct payloads are kept on the heap
+ * up to its budget and spilled beyond it, each charged and spilled once
+ * however many nodes share it.
+ */
+public final class PayloadStore {
+    private static final byte[] EMPTY = new byte[0];
+    private static final Payload EMPTY_PAYLOAD = new Payload(EMPTY);
+
+    private final ConcurrentMap<Payload, Payload> payloads = new ConcurrentHashMap<>();
+    private final SpillFile spill;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong distinctBytes = new AtomicLong();
+
+    /**
+     * Create a store keeping all payloads on the heap.
+     */
+    public PayloadStore() {
+        this(null);
+    }
+
+    /**
+     * Create a store keeping payloads on the heap up to the budget of
+     * {@code spill}, and spilling the rest to it.
+     */
+    public PayloadStore(SpillFile spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * Returns a payload equal to {@code data}, shared with every other node
+     * holding the same data. Safe to call from several reader threads.
+     * Spilled payloads are copied back, use {@link #setData(Node, byte[])}
+     * to share them.
+     */
+    public byte[] intern(byte[] data) throws IOException {
+        return data == null ? null : share(data).getData();
+    }
+
+    /**
+     * Set the data of {@code node} to a payload equal to {@code data}, shared
+     * with every other node holding the same data, on the heap or spilled.
+     * Safe to call from several reader threads.
+     */
+    public void setData(Node node, byte[] data) throws IOException {
+        if (data == null) {
+            node.setData(null);
+        } else {
+            share(data).setData(node);
+        }
+    }
+
+    private Payload share(byte[] data) throws IOException {
+        count.incrementAndGet();
+        bytes.addAndGet(data.length);
+        if (data.length == 0) {
+            return EMPTY_PAYLOAD;
+        }
+        Payload payload = new Payload(data);
+        Payload shared = payloads.get(payload);
+        if (shared != null) {
+            return shared;
+        }
+        SpillFile.Region region = spill == null ? null : spill.store(data);
+        if (region != null) {
+            payload = new Payload(region, payload.hash);
+        }
+        shared = payloads.putIfAbsent(payload, payload);
+        if (shared == null) {
+            distinctBytes.addAndGet(data.length);
+            return payload;
+        }
+        if (spill != null) {
+            // stored by another reader meanwhile
+            spill.discard(data, region);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the number of payloads interned, including duplicates.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the number of distinct non-empty payloads held.
+     */
+    public int getDistinct() {
+        return payloads.size();
+    }
+
+    /**
+     * Returns the size of all payloads interned, including duplicates.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the size of the distinct payloads actually held, on the heap
+     * or spilled.
+     */
+    public long getDistinctBytes() {
+        return distinctBytes.get();
+    }
+
+    /**
+     * Returns how many bytes were interned per byte held, 1 if nothing was
+     * shared.
+     */
+    public double getRatio() {
+        long held = distinctBytes.get();
+        return held == 0 ? 1 : bytes.get() / (double) held;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Deduplicated %d payloads into %d distinct ones: %.1f MB held for %.1f MB read "
+                + "(ratio %.2f)", getCount(), getDistinct(), getDistinctBytes() / (1024.0 * 1024.0),
+                getBytes() / (1024.0 * 1024.0), getRatio());
+    }
+
+    /**
+     * A payload held on the heap or spilled, with its content hash computed
+     * once.
+     */
+    private static final class Payload {
+        private final byte[] data;
+        private final SpillFile.Region region;
+        private final int hash;
+
+        Payload(byte[] data) {
+            this.data = data;
+            this.region = null;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        Payload(SpillFile.Region region, int hash) {
+            this.data = null;
+            this.region = region;
+            this.hash = hash;
+        }
+
+        byte[] getData() {
+            return region == null ? data : region.read();
+        }
+
+        void setData(Node node) {
+            if (region == null) {
+                node.setData(data);
+            } else {
+                node.setSpilledData(region);
+            }
+        }
+
+        private int length() {
+            return region == null ? data.length : region.length();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Payload)) {
+                return false;
+            }
+            Payload payload = (Payload) other;
+            // spilled payloads are only read back when hash and length match
+            return hash == payload.hash && length() == payload.length()
+                    && Arrays.equals(getData(), payload.getData());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.ksprojects.zkcopy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps node data on the heap up to a budget, and spills the rest to a
+ * memory-mapped temporary file.
+ *
+ * <p>A spilled node only holds the location of its data, which is paged in
+ * by the operating system when {@link Node#getData()} copies it back. The
+ * file is mapped in segments, since a single mapping cannot exceed 2 GB, and
+ * removed on {@link #close()}, once the spilled nodes have been written.
+ * With a {@link PayloadStore}, payloads shared by several nodes are charged
+ * and spilled once, by the store.
+ */
+public final class SpillFile implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SpillFile.class);
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    // a region takes about as much heap as this much data
+    private static final int MIN_SPILL_SIZE = 16;
+
+    private final long maxHeapData;
+    private final AtomicLong heapData = new AtomicLong();
+    private final File file;
+    private final RandomAccessFile raf;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private int spilledPayloads;
+    private long spilledData;
+
+    /**
+     * Create a temporary spill file in {@code java.io.tmpdir}.
+     *
+     * @param maxHeapData
+     *            bytes of node data kept on the heap before spilling
+     */
+    public SpillFile(long maxHeapData) throws IOException {
+        this.maxHeapData = maxHeapData;
+        file = File.createTempFile("zkcopy-spill", ".data");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Set the data of {@code node}, on the heap while the budget allows and
+     * spilled to the file afterwards. Safe to call from several reader
+     * threads.
+     */
+    public void setData(Node node, byte[] data) throws IOException {
+        Region region = store(data);
+        if (region == null) {
+            node.setData(data);
+        } else {
+            node.setSpilledData(region);
+        }
+    }
+
+    /**
+     * Charge {@code data} to the heap budget while it allows, and spill it
+     * otherwise.
+     *
+     * @return location of the spilled data, or {@code null} if it is kept on
+     *         the heap
+     */
+    Region store(byte[] data) throws IOException {
+        if (!isSpillable(data)) {
+            return null;
+        }
+        if (heapData.addAndGet(data.length) <= maxHeapData) {
+            return null;
+        }
+        heapData.addAndGet(-data.length);
+        return spill(data);
+    }
+
+    /**
+     * Give back the heap budget charged by {@link #store(byte[])} for data
+     * that is not kept after all. Spilled data stays in the file.
+     */
+    void discard(byte[] data, Region region) {
+        if (region == null && isSpillable(data)) {
+            heapData.addAndGet(-data.length);
+        }
+    }
+
+    private static boolean isSpillable(byte[] data) {
+        return data != null && data.length >= MIN_SPILL_SIZE && data.length <= SEGMENT_SIZE;
+    }
+
+    private synchronized Region spill(byte[] data) throws IOException {
+        if (!raf.getChannel().isOpen()) {
+            throw new IOException("Spill file " + file + " is closed");
+        }
+        if (segment == null || segment.remaining() < data.length) {
+            if (segment != null) {
+                segmentStart += segment.position();
+            } else {
+                LOGGER.info("Node data exceeds " + maxHeapData + " bytes of heap, spilling to " + file);
+            }
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        }
+        final Region region = new Region(segment, segment.position(), data.length);
+        segment.put(data);
+        spilledPayloads++;
+        spilledData += data.length;
+        return region;
+    }
+
+    /**
+     * Returns the number of data bytes held on the heap.
+     */
+    public long getHeapData() {
+        return heapData.get();
+    }
+
+    /**
+     * Returns the number of data bytes spilled to the file.
+     */
+    public synchronized long getSpilledData() {
+        return spilledData;
+    }
+
+    /**
+     * Close and remove the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (spilledPayloads > 0) {
+            LOGGER.info("Spilled " + spilledPayloads + " payloads, " + spilledData / (1024 * 1024)
+                    + " MB, to " + file);
+        }
+        segment = null;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close spill file " + file, e);
+        }
+        // mappings are only released by the garbage collector, which may keep some platforms from deleting
+        if (!file.delete()) {
+            LOGGER.debug("Could not delete spill file " + file + " yet, removing it on exit");
+        }
+    }
+
+    /**
+     * Location of spilled data, which is all a spilled node keeps.
+     */
+    static final class Region {
+        private final ByteBuffer segment;
+        private final int offset;
+        private final int length;
+
+        Region(ByteBuffer segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] read() {
+            byte[] data = new byte[length];
+            // a duplicate per read, since readers share the segment
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position(offset);
+            buffer.get(data);
+            return data;
+        }
+    }
+}
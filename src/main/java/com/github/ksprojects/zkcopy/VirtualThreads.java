@@ -0,0 +1,70 @@
+package com.github.ksprojects.zkcopy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Executors running every task in its own virtual thread, when the JVM has
+ * them.
+ *
+ * <p>zkcopy is built for Java 7, so virtual threads are looked up
+ * reflectively; on JVMs without them, tasks run on a fixed pool of platform
+ * threads instead. Blocking ZooKeeper calls wait on a monitor, which before
+ * Java 24 holds on to the carrier thread, so until then the JVM adds carriers
+ * up to {@code jdk.virtualThreadScheduler.maxPoolSize} rather than running
+ * every blocked task on a few of them.
+ */
+public final class VirtualThreads {
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class);
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if this JVM has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, or a pool of
+     * {@code platformThreads} daemon threads named after {@code name} if
+     * virtual threads are not available.
+     */
+    public static ExecutorService newExecutor(final String name, int platformThreads) {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // e.g. a preview API that is not enabled
+                LOGGER.warn("Could not start virtual threads, using " + platformThreads + " platform threads", e);
+            }
+        } else {
+            LOGGER.warn("Virtual threads need Java 21 or later, using " + platformThreads + " platform threads");
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        return Executors.newFixedThreadPool(platformThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.ksprojects.zkcopy.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with exponential buckets, from 1 microsecond doubling up
+ * to about a minute, plus one bucket for anything slower.
+ *
+ * <p>Recording is lock-free so it can be called from reader threads and
+ * ZooKeeper callbacks alike.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 27;
+    private static final long FIRST_BOUND = 1000;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record the time elapsed since {@code startNanos}, as returned by
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKETS && nanos > upperBound(bucket)) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long previous;
+        while (nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) {
+            // retry
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded latencies in nanoseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound of the given quantile in nanoseconds, that is
+     * the upper bound of the bucket it falls into.
+     */
+    public long quantile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Number of finite buckets; bucket {@code buckets()} holds the rest.
+     */
+    static int buckets() {
+        return BUCKETS;
+    }
+
+    /**
+     * Upper bound of a finite bucket in nanoseconds.
+     */
+    static long upperBound(int bucket) {
+        return FIRST_BOUND << bucket;
+    }
+
+    long bucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+}
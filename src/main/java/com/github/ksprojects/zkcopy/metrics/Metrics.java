@@ -0,0 +1,150 @@
+package com.github.ksprojects.zkcopy.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Metrics of the running copy: latency of ZooKeeper operations and
+ * throughput of reading and writing.
+ *
+ * <p>Like loggers, metrics are static so every reader and writer records into
+ * the same instances without passing them around.
+ */
+public final class Metrics {
+    public static final Histogram SOURCE_GET_DATA = new Histogram("source_get_data");
+    public static final Histogram SOURCE_GET_CHILDREN = new Histogram("source_get_children");
+    public static final Histogram SOURCE_EXISTS = new Histogram("source_exists");
+    public static final Histogram TARGET_GET_DATA = new Histogram("target_get_data");
+    public static final Histogram TARGET_GET_CHILDREN = new Histogram("target_get_children");
+    public static final Histogram TARGET_EXISTS = new Histogram("target_exists");
+    public static final Histogram MULTI = new Histogram("multi");
+    /**
+     * Time spent finding and queuing the deletion of the deprecated subtrees
+     * under a node.
+     */
+    public static final Histogram DELETE = new Histogram("delete");
+
+    public static final Throughput READ = new Throughput("read");
+    public static final Throughput WRITE = new Throughput("write");
+
+    private static final List<Histogram> HISTOGRAMS = Collections.unmodifiableList(Arrays.asList(SOURCE_GET_DATA,
+            SOURCE_GET_CHILDREN, SOURCE_EXISTS, TARGET_GET_DATA, TARGET_GET_CHILDREN, TARGET_EXISTS, MULTI, DELETE));
+    private static final List<Throughput> PHASES = Collections.unmodifiableList(Arrays.asList(READ, WRITE));
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private Metrics() {
+    }
+
+    public static List<Histogram> histograms() {
+        return HISTOGRAMS;
+    }
+
+    public static List<Throughput> phases() {
+        return PHASES;
+    }
+
+    /**
+     * Returns all metrics as a JSON document; latencies are in milliseconds.
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"operations\": {");
+        String separator = "\n";
+        for (Histogram histogram : HISTOGRAMS) {
+            json.append(separator).append("    \"").append(histogram.getName()).append("\": {\"count\": ")
+                    .append(histogram.getCount()).append(", \"sumMs\": ").append(millis(histogram.getSum()))
+                    .append(", \"maxMs\": ").append(millis(histogram.getMax()));
+            for (double quantile : QUANTILES) {
+                json.append(", \"p").append((int) (quantile * 100)).append("Ms\": ")
+                        .append(millis(histogram.quantile(quantile)));
+            }
+            json.append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"phases\": {");
+        separator = "\n";
+        for (Throughput phase : PHASES) {
+            json.append(separator).append("    \"").append(phase.getName()).append("\": {\"nodes\": ")
+                    .append(phase.getItems()).append(", \"bytes\": ").append(phase.getBytes())
+                    .append(", \"millis\": ").append(phase.getMillis()).append(", \"nodesPerSecond\": ")
+                    .append(format(phase.getItemsPerSecond())).append(", \"bytesPerSecond\": ")
+                    .append(format(phase.getBytesPerSecond())).append('}');
+            separator = ",\n";
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     */
+    public static String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP zkcopy_operation_seconds Latency of ZooKeeper operations.\n");
+        text.append("# TYPE zkcopy_operation_seconds histogram\n");
+        for (Histogram histogram : HISTOGRAMS) {
+            String label = "operation=\"" + histogram.getName() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.buckets(); i++) {
+                cumulative += histogram.bucketCount(i);
+                text.append("zkcopy_operation_seconds_bucket{").append(label).append(",le=\"")
+                        .append(seconds(Histogram.upperBound(i))).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("zkcopy_operation_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(histogram.getCount()).append('\n');
+            text.append("zkcopy_operation_seconds_sum{").append(label).append("} ")
+                    .append(seconds(histogram.getSum())).append('\n');
+            text.append("zkcopy_operation_seconds_count{").append(label).append("} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+        text.append("# HELP zkcopy_phase_nodes_total Nodes transferred per phase.\n");
+        text.append("# TYPE zkcopy_phase_nodes_total counter\n");
+        for (Throughput phase : PHASES) {
+            text.append("zkcopy_phase_nodes_total{phase=\"").append(phase.getName()).append("\"} ")
+                    .append(phase.getItems()).append('\n');
+        }
+        text.append("# HELP zkcopy_phase_bytes_total Bytes transferred per phase.\n");
+        text.append("# TYPE zkcopy_phase_bytes_total counter\n");
+        for (Throughput phase : PHASES) {
+            text.append("zkcopy_phase_bytes_total{phase=\"").append(phase.getName()).append("\"} ")
+                    .append(phase.getBytes()).append('\n');
+        }
+        text.append("# HELP zkcopy_phase_seconds Time between the first and the latest transfer per phase.\n");
+        text.append("# TYPE zkcopy_phase_seconds gauge\n");
+        for (Throughput phase : PHASES) {
+            text.append("zkcopy_phase_seconds{phase=\"").append(phase.getName()).append("\"} ")
+                    .append(format(phase.getMillis() / 1000.0)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns a one-line summary of a histogram for logging.
+     */
+    public static String summary(Histogram histogram) {
+        return histogram.getName() + ": count=" + histogram.getCount() + ", p50=" + millis(histogram.quantile(0.5))
+                + " ms, p99=" + millis(histogram.quantile(0.99)) + " ms, max=" + millis(histogram.getMax()) + " ms";
+    }
+
+    /**
+     * Returns a one-line summary of a phase for logging.
+     */
+    public static String summary(Throughput phase) {
+        return phase.getName() + ": " + phase.getItems() + " nodes, " + phase.getBytes() + " bytes in "
+                + phase.getMillis() + " ms (" + format(phase.getItemsPerSecond()) + " nodes/s, "
+                + format(phase.getBytesPerSecond()) + " bytes/s)";
+    }
+
+    private static String millis(long nanos) {
+        return format(nanos / 1e6);
+    }
+
+    private static String seconds(long nanos) {
+        return format(nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6g", value).replaceAll("(\\.\\d*?)0+(e|$)", "$1$2")
+                .replaceAll("\\.(e|$)", "$1");
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.ksprojects.zkcopy.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes {@link Metrics} to {@code <prefix>.json} and {@code <prefix>.prom}
+ * periodically while a copy runs, and once more when it is closed.
+ */
+public final class MetricsReporter implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(MetricsReporter.class);
+
+    private final File json;
+    private final File prometheus;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Start reporting.
+     *
+     * @param prefix
+     *            path of the report files without extension
+     * @param intervalSeconds
+     *            seconds between reports while running, 0 to only report
+     *            when closed
+     */
+    public MetricsReporter(String prefix, int intervalSeconds) {
+        json = new File(prefix + ".json");
+        prometheus = new File(prefix + ".prom");
+        if (intervalSeconds <= 0) {
+            scheduler = null;
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "zkcopy-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop reporting, write the final report and log a summary.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        write();
+        for (Throughput phase : Metrics.phases()) {
+            LOGGER.info(Metrics.summary(phase));
+        }
+        for (Histogram histogram : Metrics.histograms()) {
+            if (histogram.getCount() > 0) {
+                LOGGER.info(Metrics.summary(histogram));
+            }
+        }
+        LOGGER.info("Metrics written to " + json + " and " + prometheus);
+    }
+
+    private synchronized void write() {
+        try {
+            replace(json, Metrics.toJson());
+            replace(prometheus, Metrics.toPrometheus());
+        } catch (IOException e) {
+            LOGGER.warn("Could not write metrics", e);
+        }
+    }
+
+    /**
+     * Write the file next to the report and rename it, so readers never see
+     * a partial report.
+     */
+    private static void replace(File file, String content) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.ksprojects.zkcopy.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nodes and bytes transferred in one phase of a copy, with the time between
+ * the first and the latest transfer.
+ */
+public final class Throughput {
+    private final String name;
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong first = new AtomicLong();
+    private volatile long last;
+
+    Throughput(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Account for transferred items.
+     */
+    public void add(long itemCount, long byteCount) {
+        long now = System.nanoTime();
+        first.compareAndSet(0, now);
+        last = now;
+        items.addAndGet(itemCount);
+        bytes.addAndGet(byteCount);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getItems() {
+        return items.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns milliseconds between the first and the latest transfer.
+     */
+    public long getMillis() {
+        long start = first.get();
+        return start == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(last - start);
+    }
+
+    public double getItemsPerSecond() {
+        return perSecond(items.get());
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(bytes.get());
+    }
+
+    private double perSecond(long value) {
+        long millis = getMillis();
+        return millis == 0 ? 0 : value * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,503 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.Journal;
+import com.github.ksprojects.zkcopy.LoggingWatcher;
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.PayloadStore;
+import com.github.ksprojects.zkcopy.SpillFile;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * ZooKeeper data reader built on the asynchronous client API.
+ *
+ * <p>Instead of one blocking round-trip per thread, every session keeps up to
+ * {@code inFlight} {@code getData}/{@code getChildren} requests outstanding.
+ * Callbacks only record results; a single dispatcher thread (the caller of
+ * {@link #read()}) attaches children to the tree and issues their requests, so
+ * the ZooKeeper event threads never block.
+ */
+public final class AsyncReader {
+    private static Logger logger = Logger.getLogger(AsyncReader.class);
+    private static final Object FAILED = new Object();
+    private final String source;
+    private final int sessionsNumber;
+    private final int inFlight;
+    private final int timeout;
+    private String server;
+    private String path;
+    private List<ZooKeeper> sessions;
+    private Checkpoint checkpoint;
+    private Journal journal;
+    private PayloadStore payloads;
+    private SpillFile spill;
+    private boolean spreadReads;
+    private PathFilter filter;
+
+    /**
+     * Create new asynchronous reader instance for a given source.
+     *
+     * @param source address of the data to read
+     * @param sessions number of ZooKeeper sessions to spread requests over
+     * @param inFlight maximum number of outstanding requests per session
+     * @param timeout the session timeout for read operations
+     */
+    public AsyncReader(String source, int sessions, int inFlight, int timeout) {
+        this.source = source;
+        this.sessionsNumber = sessions;
+        this.inFlight = inFlight;
+        this.timeout = timeout;
+        parseSource();
+    }
+
+    /**
+     * Create reader over already established sessions, which are not closed by
+     * {@link #read()}.
+     */
+    AsyncReader(List<ZooKeeper> sessions, String path, int inFlight) {
+        this.source = null;
+        this.sessionsNumber = sessions.size();
+        this.inFlight = inFlight;
+        this.timeout = 0;
+        this.server = "provided sessions";
+        this.path = path;
+        this.sessions = sessions;
+    }
+
+    private void parseSource() {
+        int p = source.indexOf('/');
+        server = source.substring(0, p);
+        path = source.substring(p);
+    }
+
+    /**
+     * Read only data and children that changed since {@code checkpoint}, and
+     * record what was read into it.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Skip subtrees completed by the copy being resumed.
+     *
+     * @see Reader#setJournal(Journal)
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Intern the data of every node read into {@code payloads}.
+     *
+     * @see Reader#setPayloadStore(PayloadStore)
+     */
+    public void setPayloadStore(PayloadStore payloads) {
+        this.payloads = payloads;
+    }
+
+    /**
+     * Keep node data on the heap only up to the budget of {@code spill}.
+     *
+     * @see Reader#setSpillFile(SpillFile)
+     */
+    public void setSpillFile(SpillFile spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * Pin sessions to the servers of the connect string round-robin. Requests
+     * go to the session with the fewest outstanding, so a slow server gets
+     * fewer of them.
+     *
+     * @see Reader#setSpreadReads(boolean)
+     */
+    public void setSpreadReads(boolean spreadReads) {
+        this.spreadReads = spreadReads;
+    }
+
+    /**
+     * Skip the subtrees {@code filter} does not accept.
+     *
+     * @see Reader#setPathFilter(PathFilter)
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Read data from the source.
+     *
+     * @return root of the tree that was read, or {@code null} on failure
+     */
+    public Node read() {
+        return readTree(null);
+    }
+
+    /**
+     * Read data from the source, handing every node over to {@code stream} as
+     * soon as it has been read instead of building the whole tree. The stream
+     * is closed, or failed, once reading is over.
+     *
+     * @return {@code true} if the whole source was read
+     */
+    public boolean read(NodeStream stream) {
+        Node root = null;
+        try {
+            root = readTree(stream);
+        } finally {
+            try {
+                if (root == null) {
+                    stream.fail();
+                } else {
+                    stream.close();
+                }
+            } catch (InterruptedException e) {
+                logger.error("Could not close node stream", e);
+            }
+        }
+        return root != null;
+    }
+
+    private Node readTree(NodeStream stream) {
+        logger.info("Reading " + path + " from " + server + " asynchronously using " + sessionsNumber
+                + " sessions, " + inFlight + " requests in flight per session");
+        boolean ownSessions = sessions == null;
+        try {
+            if (ownSessions) {
+                sessions = openSessions();
+            }
+            return new Dispatcher(stream).run(new Node(path));
+        } catch (IOException e) {
+            logger.error("Cannot connect to source Zookeeper", e);
+            return null;
+        } catch (InterruptedException e) {
+            logger.error("Asynchronous read was interrupted", e);
+            return null;
+        } finally {
+            if (ownSessions) {
+                closeSessions();
+            }
+        }
+    }
+
+    private List<ZooKeeper> openSessions() throws IOException {
+        List<ZooKeeper> result = new ArrayList<>(sessionsNumber);
+        Ensemble ensemble = Ensemble.of(server, spreadReads);
+        try {
+            for (int i = 0; i < sessionsNumber; i++) {
+                result.add(new ZooKeeper(ensemble.connectString(i), timeout, new LoggingWatcher()));
+            }
+        } catch (IOException e) {
+            sessions = result;
+            throw e;
+        }
+        return result;
+    }
+
+    private void closeSessions() {
+        if (sessions == null) {
+            return;
+        }
+        for (ZooKeeper zk : sessions) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                logger.warn("There was an error closing a source zookeeper connection", e);
+            }
+        }
+        sessions = null;
+    }
+
+    /**
+     * Outstanding read of a single node. Completes once both the data and the
+     * children callbacks have fired. With a checkpoint entry, a stat is read
+     * first and only the changed parts are requested afterwards.
+     */
+    private static final class PendingRead {
+        private final Node node;
+        private final ZooKeeper zk;
+        private final Semaphore permits;
+        private final Checkpoint.Entry previous;
+        private final AtomicInteger remaining = new AtomicInteger(2);
+        private volatile List<String> children;
+        private volatile Stat stat;
+        private volatile long mzxid;
+        private volatile long pzxid;
+        private volatile long issued;
+        private boolean statChecked;
+
+        PendingRead(Node node, ZooKeeper zk, Semaphore permits, Checkpoint.Entry previous) {
+            this.node = node;
+            this.zk = zk;
+            this.permits = permits;
+            this.previous = previous;
+        }
+    }
+
+    private final class Dispatcher implements DataCallback, Children2Callback, StatCallback {
+        private final BlockingQueue<Object> completed = new LinkedBlockingQueue<>();
+        private final List<Semaphore> permits = new ArrayList<>(sessions.size());
+        private final NodeStream stream;
+        private final PayloadStore store;
+        private final SpillFile spillFile;
+        private int next = 0;
+        private int outstanding = 0;
+        private long total = 0;
+        private long processed = 0;
+
+        Dispatcher(NodeStream stream) {
+            this.stream = stream;
+            this.store = stream == null ? payloads : null;
+            this.spillFile = stream == null ? spill : null;
+            for (int i = 0; i < sessions.size(); i++) {
+                permits.add(new Semaphore(inFlight));
+            }
+        }
+
+        Node run(Node root) throws InterruptedException {
+            issue(root);
+            long lastReport = System.currentTimeMillis();
+            while (outstanding > 0) {
+                Object event = completed.poll(1, TimeUnit.SECONDS);
+                if (System.currentTimeMillis() - lastReport >= 1000) {
+                    logger.info("Processing, total=" + total + ", processed=" + processed);
+                    lastReport = System.currentTimeMillis();
+                }
+                if (event == null) {
+                    continue;
+                }
+                if (event == FAILED) {
+                    return null;
+                }
+                PendingRead read = (PendingRead) event;
+                if (read.previous != null && !read.statChecked) {
+                    read.statChecked = true;
+                    if (requestChanged(read)) {
+                        continue;
+                    }
+                }
+                if (!complete(read)) {
+                    return null;
+                }
+            }
+            logger.info("Completed.");
+            if (store != null) {
+                logger.info(store);
+            }
+            return root;
+        }
+
+        private boolean complete(PendingRead read) throws InterruptedException {
+            outstanding--;
+            processed++;
+            Metrics.READ.add(1, read.node.getDataLength());
+            if (checkpoint != null) {
+                checkpoint.record(read.node.getAbsolutePath(), read.mzxid, read.pzxid, read.children);
+            }
+            read.node.reserveChildren(read.children.size());
+            String relativePath = journal == null && filter == null ? null
+                    : Journal.relativePath(path, read.node.getAbsolutePath());
+            if (stream != null) {
+                // names must be known before the node is handed over, children follow it
+                for (String child : read.children) {
+                    if (!"zookeeper".equals(child) && (filter == null || filter.accepts(relativePath, child))) {
+                        read.node.appendChildName(child);
+                    }
+                }
+                if (!stream.put(read.node)) {
+                    return false;
+                }
+            }
+            for (String child : read.children) {
+                if ("zookeeper".equals(child)) {
+                    // reserved
+                    continue;
+                }
+                if (filter != null && !filter.accepts(relativePath, child)) {
+                    continue;
+                }
+                if (journal != null && journal.isCompleted(relativePath, child)) {
+                    // copied by the run being resumed, only keep it from being deleted
+                    if (stream == null) {
+                        read.node.appendChildName(child);
+                    }
+                    continue;
+                }
+                Node zchild = new Node(read.node, child);
+                if (stream == null) {
+                    read.node.appendChild(zchild);
+                }
+                issue(zchild);
+            }
+            return true;
+        }
+
+        private void issue(Node node) throws InterruptedException {
+            int session = leastLoaded();
+            next = (session + 1) % sessions.size();
+            Semaphore sessionPermits = permits.get(session);
+            outstanding++;
+            total++;
+            String nodePath = node.getAbsolutePath();
+            Checkpoint.Entry previous = checkpoint == null ? null : checkpoint.previous(nodePath);
+            ZooKeeper zk = sessions.get(session);
+            PendingRead read = new PendingRead(node, zk, sessionPermits, previous);
+            logger.debug("Reading node " + nodePath);
+            if (previous != null) {
+                sessionPermits.acquire();
+                read.issued = System.nanoTime();
+                zk.exists(nodePath, false, this, read);
+                return;
+            }
+            sessionPermits.acquire();
+            read.issued = System.nanoTime();
+            zk.getData(nodePath, false, this, read);
+            sessionPermits.acquire();
+            zk.getChildren(nodePath, false, this, read);
+        }
+
+        /**
+         * Returns the session with the most free permits, the next one
+         * round-robin among equals, so sessions on slow servers are given
+         * less work instead of blocking the dispatcher.
+         */
+        private int leastLoaded() {
+            int best = next;
+            int bestFree = permits.get(best).availablePermits();
+            for (int i = 1; i < sessions.size() && bestFree < inFlight; i++) {
+                int session = (next + i) % sessions.size();
+                int free = permits.get(session).availablePermits();
+                if (free > bestFree) {
+                    best = session;
+                    bestFree = free;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Compare the stat of a node with its checkpoint entry and request
+         * data and children that changed.
+         *
+         * @return {@code true} if requests were issued, {@code false} if the
+         *         node is already complete
+         */
+        private boolean requestChanged(PendingRead read) throws InterruptedException {
+            Stat stat = read.stat;
+            if (stat.getEphemeralOwner() != 0) {
+                read.node.setEphemeral(true);
+            }
+            read.node.setMtime(stat.getMtime());
+            read.mzxid = stat.getMzxid();
+            read.pzxid = stat.getPzxid();
+            boolean dataChanged = stat.getMzxid() != read.previous.getMzxid();
+            boolean childrenChanged = stat.getPzxid() != read.previous.getPzxid();
+            read.node.setDataUnchanged(!dataChanged);
+            read.node.setChildrenUnchanged(!childrenChanged);
+            if (!childrenChanged) {
+                read.children = read.previous.getChildren();
+            }
+            read.remaining.set((dataChanged ? 1 : 0) + (childrenChanged ? 1 : 0));
+            String nodePath = read.node.getAbsolutePath();
+            read.issued = System.nanoTime();
+            if (dataChanged) {
+                read.permits.acquire();
+                read.zk.getData(nodePath, false, this, read);
+            }
+            if (childrenChanged) {
+                read.permits.acquire();
+                read.zk.getChildren(nodePath, false, this, read);
+            }
+            return dataChanged || childrenChanged;
+        }
+
+        @Override
+        public void processResult(int rc, String nodePath, Object ctx, Stat stat) {
+            PendingRead read = (PendingRead) ctx;
+            read.permits.release();
+            Metrics.SOURCE_EXISTS.recordSince(read.issued);
+            if (failed(rc, nodePath)) {
+                return;
+            }
+            read.stat = stat;
+            completed.offer(read);
+        }
+
+        @Override
+        public void processResult(int rc, String nodePath, Object ctx, byte[] data, Stat stat) {
+            PendingRead read = (PendingRead) ctx;
+            read.permits.release();
+            Metrics.SOURCE_GET_DATA.recordSince(read.issued);
+            if (failed(rc, nodePath)) {
+                return;
+            }
+            if (stat.getEphemeralOwner() != 0) {
+                read.node.setEphemeral(true);
+            }
+            try {
+                if (store != null) {
+                    // spills shared payloads itself, once
+                    store.setData(read.node, data);
+                } else if (spillFile != null) {
+                    spillFile.setData(read.node, data);
+                } else {
+                    read.node.setData(data);
+                }
+            } catch (IOException e) {
+                logger.error("Could not spill node data", e);
+                completed.offer(FAILED);
+                return;
+            }
+            read.node.setMtime(stat.getMtime());
+            read.mzxid = stat.getMzxid();
+            maybeComplete(read);
+        }
+
+        @Override
+        public void processResult(int rc, String nodePath, Object ctx, List<String> children, Stat stat) {
+            PendingRead read = (PendingRead) ctx;
+            read.permits.release();
+            Metrics.SOURCE_GET_CHILDREN.recordSince(read.issued);
+            if (failed(rc, nodePath)) {
+                return;
+            }
+            read.children = children;
+            read.pzxid = stat.getPzxid();
+            maybeComplete(read);
+        }
+
+        private boolean failed(int rc, String nodePath) {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                return false;
+            }
+            logger.error("Could not read from remote server",
+                    KeeperException.create(KeeperException.Code.get(rc), nodePath));
+            completed.offer(FAILED);
+            return true;
+        }
+
+        private void maybeComplete(PendingRead read) {
+            if (read.remaining.decrementAndGet() == 0) {
+                completed.offer(read);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Connect strings for the source sessions of a reader.
+ *
+ * <p>When spreading reads, every server of the connect string, observers
+ * included, is a member and sessions are pinned to members round-robin, so
+ * the client library does not pile them onto a single server. Otherwise
+ * every session uses the whole connect string.
+ *
+ * <p>A pinned session has no other server to fail over to: if its server
+ * goes down, the reads on that session fail and so does the copy. The client
+ * library shuffles the servers of a connect string, so listing the others
+ * after the pinned one would not keep the session on it either.
+ */
+final class Ensemble {
+    private static final Logger LOGGER = Logger.getLogger(Ensemble.class);
+
+    private final List<String> members;
+
+    private Ensemble(List<String> members) {
+        this.members = members;
+    }
+
+    /**
+     * Returns the members of the ensemble given by {@code server}, a
+     * connect string without a path.
+     *
+     * @param spread
+     *            {@code true} to pin sessions to single members
+     */
+    static Ensemble of(String server, boolean spread) {
+        if (!spread) {
+            return new Ensemble(Collections.singletonList(server));
+        }
+        List<String> members = new ArrayList<>();
+        for (String member : server.split(",")) {
+            if (!member.trim().isEmpty()) {
+                members.add(member.trim());
+            }
+        }
+        if (members.size() > 1) {
+            LOGGER.info("Spreading source sessions over " + members.size() + " servers: " + members
+                    + ", sessions do not fail over to other servers");
+        }
+        return new Ensemble(members);
+    }
+
+    /**
+     * Returns the connect string for the {@code session}th session.
+     */
+    String connectString(int session) {
+        return members.get(session % members.size());
+    }
+}
@@ -1,68 +1,259 @@
 package com.github.ksprojects.zkcopy.reader;
 
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.DataDigest;
+import com.github.ksprojects.zkcopy.Journal;
 import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.PayloadStore;
+import com.github.ksprojects.zkcopy.SpillFile;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
-final class NodeReader implements Runnable {
+/**
+ * Reads a single node and forks a task for each of its children.
+ *
+ * <p>Children are forked onto the worker's own deque, which the worker pops
+ * from the top, so every worker descends depth-first into the subtree it is
+ * reading while idle workers steal the oldest, largest subtrees from the
+ * bottom.
+ *
+ * <p>With {@link ReadTasks}, children are submitted as tasks of their own
+ * instead, and every read borrows one of their shared sessions.
+ *
+ * <p>Reading a target tree, nodes keep the {@link DataDigest} of their data
+ * instead of the data itself, and calls are recorded under the target
+ * metrics instead of the source ones.
+ */
+final class NodeReader extends RecursiveAction {
 
     private static final Logger LOGGER = Logger.getLogger(NodeReader.class);
+    private static final long serialVersionUID = 1L;
 
     private final Node znode;
-    private final ExecutorService pool;
-    private final AtomicInteger totalCounter;
-    private final AtomicInteger processedCounter;
+    private final ReadProgress progress;
 
     private final AtomicBoolean failed;
+    private final NodeStream stream;
+    private final Checkpoint checkpoint;
+    private final Journal journal;
+    private final PayloadStore payloads;
+    private final SpillFile spill;
+    private final PathFilter filter;
+    private final ReadTasks tasks;
+    private final boolean target;
 
-    NodeReader(ExecutorService pool, Node znode, AtomicInteger totalCounter, AtomicInteger processedCounter, AtomicBoolean failed) {
+    NodeReader(Node znode, ReadProgress progress, AtomicBoolean failed, NodeStream stream, Checkpoint checkpoint,
+            Journal journal, PayloadStore payloads, SpillFile spill, PathFilter filter, ReadTasks tasks,
+            boolean target) {
         this.znode = znode;
-        this.pool = pool;
-        this.totalCounter = totalCounter;
-        this.processedCounter = processedCounter;
+        this.progress = progress;
         this.failed = failed;
-        totalCounter.incrementAndGet();
+        this.stream = stream;
+        this.checkpoint = checkpoint;
+        this.journal = journal;
+        this.payloads = payloads;
+        this.spill = spill;
+        this.filter = filter;
+        this.tasks = tasks;
+        this.target = target;
+        progress.started();
+    }
+
+    /**
+     * Create the reader of a child, sharing the settings of its parent's.
+     */
+    private NodeReader(Node znode, NodeReader parent) {
+        this(znode, parent.progress, parent.failed, parent.stream, parent.checkpoint, parent.journal,
+                parent.payloads, parent.spill, parent.filter, parent.tasks, parent.target);
     }
 
     @Override
-    public void run() {
+    protected void compute() {
         try {
             if (failed.get()) {
                 return;
             }
-            ReaderThread thread = (ReaderThread) Thread.currentThread();
-            ZooKeeper zk = thread.getZooKeeper();
-            Stat stat = new Stat();
             String path = znode.getAbsolutePath();
             LOGGER.debug("Reading node " + path);
-            byte[] data = zk.getData(path, false, stat);
-            if (stat.getEphemeralOwner() != 0) {
-                znode.setEphemeral(true);
+            List<String> children;
+            if (tasks == null) {
+                ReaderThread thread = (ReaderThread) Thread.currentThread();
+                children = read(thread.getZooKeeper(), path);
+            } else {
+                ZooKeeper zk = tasks.acquire();
+                try {
+                    children = read(zk, path);
+                } finally {
+                    tasks.release(zk);
+                }
+            }
+            if (!target) {
+                Metrics.READ.add(1, znode.getDataLength());
+            }
+            znode.reserveChildren(children.size());
+            String relativePath = journal == null && filter == null ? null
+                    : Journal.relativePath(rootPath(), path);
+            if (stream != null) {
+                // names must be known before the node is handed over, children follow it
+                for (String child : children) {
+                    if (!"zookeeper".equals(child) && (filter == null || filter.accepts(relativePath, child))) {
+                        znode.appendChildName(child);
+                    }
+                }
+                if (!stream.put(znode)) {
+                    failed.set(true);
+                    return;
+                }
             }
-            znode.setData(data);
-            znode.setMtime(stat.getMtime());
-            List<String> children = zk.getChildren(path, false);
             for (String child : children) {
                 if ("zookeeper".equals(child)) {
                     // reserved
                     continue;
                 }
+                if (filter != null && !filter.accepts(relativePath, child)) {
+                    // neither read nor known to the writer, so never deleted either
+                    continue;
+                }
+                if (journal != null && journal.isCompleted(relativePath, child)) {
+                    // copied by the run being resumed, only keep it from being deleted
+                    if (stream == null) {
+                        znode.appendChildName(child);
+                    }
+                    continue;
+                }
                 Node zchild = new Node(znode, child);
-                znode.appendChild(zchild);
-                pool.execute(new NodeReader(pool, zchild, totalCounter, processedCounter, failed));
+                if (stream == null) {
+                    znode.appendChild(zchild);
+                }
+                NodeReader reader = new NodeReader(zchild, this);
+                if (tasks == null) {
+                    reader.fork();
+                } else {
+                    tasks.submit(reader);
+                }
             }
         } catch (KeeperException | InterruptedException e) {
             LOGGER.error("Could not read from remote server", e);
             failed.set(true);
+        } catch (IOException e) {
+            LOGGER.error("Could not spill node data", e);
+            failed.set(true);
         } finally {
-            processedCounter.incrementAndGet();
+            progress.finished();
+        }
+    }
+
+    private List<String> read(ZooKeeper zk, String path) throws KeeperException, InterruptedException, IOException {
+        return checkpoint == null ? readNode(zk, path) : readChangedNode(zk, path);
+    }
+
+    private List<String> readNode(ZooKeeper zk, String path)
+            throws KeeperException, InterruptedException, IOException {
+        Stat stat = new Stat();
+        setData(getData(zk, path, stat));
+        setStat(stat);
+        return getChildren(zk, path, null);
+    }
+
+    /**
+     * Read only what changed since the checkpoint: a stat tells whether data
+     * and children have to be fetched at all.
+     */
+    private List<String> readChangedNode(ZooKeeper zk, String path)
+            throws KeeperException, InterruptedException, IOException {
+        Checkpoint.Entry previous = checkpoint.previous(path);
+        if (previous == null) {
+            Stat stat = new Stat();
+            setData(getData(zk, path, stat));
+            setStat(stat);
+            Stat childrenStat = new Stat();
+            List<String> children = getChildren(zk, path, childrenStat);
+            checkpoint.record(path, stat.getMzxid(), childrenStat.getPzxid(), children);
+            return children;
+        }
+        Stat stat = exists(zk, path);
+        if (stat == null) {
+            throw KeeperException.create(KeeperException.Code.NONODE, path);
+        }
+        setStat(stat);
+        long mzxid = stat.getMzxid();
+        if (mzxid == previous.getMzxid()) {
+            znode.setDataUnchanged(true);
+        } else {
+            Stat dataStat = new Stat();
+            setData(getData(zk, path, dataStat));
+            mzxid = dataStat.getMzxid();
+        }
+        long pzxid = stat.getPzxid();
+        List<String> children;
+        if (pzxid == previous.getPzxid()) {
+            znode.setChildrenUnchanged(true);
+            children = previous.getChildren();
+        } else {
+            Stat childrenStat = new Stat();
+            children = getChildren(zk, path, childrenStat);
+            pzxid = childrenStat.getPzxid();
         }
+        checkpoint.record(path, mzxid, pzxid, children);
+        return children;
     }
 
-}
\ No newline at end of file
+    private void setData(byte[] data) throws IOException {
+        if (target) {
+            znode.setData(DataDigest.of(data));
+        } else if (payloads != null) {
+            // spills shared payloads itself, once
+            payloads.setData(znode, data);
+        } else if (spill != null) {
+            spill.setData(znode, data);
+        } else {
+            znode.setData(data);
+        }
+    }
+
+    private byte[] getData(ZooKeeper zk, String path, Stat stat) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        byte[] data = zk.getData(path, false, stat);
+        (target ? Metrics.TARGET_GET_DATA : Metrics.SOURCE_GET_DATA).recordSince(start);
+        return data;
+    }
+
+    private List<String> getChildren(ZooKeeper zk, String path, Stat stat)
+            throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        List<String> children = zk.getChildren(path, false, stat);
+        (target ? Metrics.TARGET_GET_CHILDREN : Metrics.SOURCE_GET_CHILDREN).recordSince(start);
+        return children;
+    }
+
+    private Stat exists(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        Stat stat = zk.exists(path, false);
+        (target ? Metrics.TARGET_EXISTS : Metrics.SOURCE_EXISTS).recordSince(start);
+        return stat;
+    }
+
+    private String rootPath() {
+        Node root = znode;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        return root.getPath();
+    }
+
+    private void setStat(Stat stat) {
+        if (stat.getEphemeralOwner() != 0) {
+            znode.setEphemeral(true);
+        }
+        znode.setMtime(stat.getMtime());
+    }
+}
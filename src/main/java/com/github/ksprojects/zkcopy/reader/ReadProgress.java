@@ -0,0 +1,46 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks node reads in flight and signals when the last one has finished.
+ *
+ * <p>A read is started before its parent's read finishes, so the number of
+ * reads in flight only drops to zero once the whole tree has been read.
+ */
+final class ReadProgress {
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    void started() {
+        started.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    void finished() {
+        if (inFlight.decrementAndGet() == 0) {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Wait for all reads to finish.
+     *
+     * @return {@code true} if they finished, {@code false} if the timeout
+     *         elapsed first
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    int getStarted() {
+        return started.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
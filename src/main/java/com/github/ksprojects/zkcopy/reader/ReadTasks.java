@@ -0,0 +1,115 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import com.github.ksprojects.zkcopy.LoggingWatcher;
+import com.github.ksprojects.zkcopy.VirtualThreads;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Runs every {@link NodeReader} as a task of its own, in a virtual thread,
+ * over a few shared source sessions.
+ *
+ * <p>A session serves many reads at once, so instead of a worker thread per
+ * session there are as many tasks as nodes waiting to be read, and up to
+ * {@code inFlight} reads per session are in flight at any time. Reads go to
+ * the sessions round-robin, skipping sessions that have no read to spare.
+ *
+ * <p>Before Java 24, a task blocked in a read pins its carrier thread, so
+ * reads in flight are also capped by the number of carriers, at most
+ * {@code jdk.virtualThreadScheduler.maxPoolSize} (256 by default).
+ */
+final class ReadTasks {
+    private static final Logger LOGGER = Logger.getLogger(ReadTasks.class);
+    /**
+     * Platform threads per session without virtual threads.
+     */
+    private static final int PLATFORM_THREADS_PER_SESSION = 8;
+
+    private final List<ZooKeeper> sessions;
+    private final ExecutorService executor;
+    private final List<Semaphore> permits;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private ReadTasks(List<ZooKeeper> sessions, int inFlight) {
+        this.sessions = sessions;
+        this.executor = VirtualThreads.newExecutor("zkcopy-reader", sessions.size() * PLATFORM_THREADS_PER_SESSION);
+        this.permits = new ArrayList<>(sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            permits.add(new Semaphore(inFlight));
+        }
+        LOGGER.info("Reading every node in a task of its own over " + sessions.size() + " sessions, up to "
+                + inFlight + " reads in flight per session");
+    }
+
+    /**
+     * Open {@code sessionsNumber} sessions to {@code ensemble}.
+     */
+    static ReadTasks open(Ensemble ensemble, int sessionsNumber, int inFlight, int timeout) throws IOException {
+        List<ZooKeeper> sessions = new ArrayList<>(sessionsNumber);
+        try {
+            for (int i = 0; i < sessionsNumber; i++) {
+                sessions.add(new ZooKeeper(ensemble.connectString(i), timeout, new LoggingWatcher()));
+            }
+        } catch (IOException e) {
+            close(sessions);
+            throw e;
+        }
+        return new ReadTasks(sessions, inFlight);
+    }
+
+    void submit(final NodeReader reader) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reader.invoke();
+            }
+        });
+    }
+
+    /**
+     * Wait for a read to be allowed in flight on some session, and return
+     * the session to issue it on.
+     */
+    ZooKeeper acquire() throws InterruptedException {
+        int first = (next.getAndIncrement() & Integer.MAX_VALUE) % sessions.size();
+        for (int i = 0; i < sessions.size(); i++) {
+            int session = (first + i) % sessions.size();
+            if (permits.get(session).tryAcquire()) {
+                return sessions.get(session);
+            }
+        }
+        permits.get(first).acquire();
+        return sessions.get(first);
+    }
+
+    /**
+     * Release the read acquired on {@code session}.
+     */
+    void release(ZooKeeper session) {
+        permits.get(sessions.indexOf(session)).release();
+    }
+
+    /**
+     * Stop running tasks and close the sessions.
+     */
+    void close() {
+        executor.shutdownNow();
+        close(sessions);
+    }
+
+    private static void close(List<ZooKeeper> sessions) {
+        for (ZooKeeper zk : sessions) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                LOGGER.warn("There was an error closing a source zookeeper connection", e);
+            }
+        }
+    }
+}
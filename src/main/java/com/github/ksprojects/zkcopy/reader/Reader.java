@@ -1,16 +1,27 @@
 package com.github.ksprojects.zkcopy.reader;
 
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.Journal;
 import com.github.ksprojects.zkcopy.Node;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import com.github.ksprojects.zkcopy.NodeStream;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.PayloadStore;
+import com.github.ksprojects.zkcopy.SpillFile;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 
 /**
  * ZooKeeper data reader
  *
+ * <p>Nodes are read by a work-stealing pool, one source session per worker,
+ * opened up front and closed once reading is over.
+ * Reading finishes as soon as the last node has been read. With virtual
+ * threads, every node is read by a task of its own over a few shared sessions
+ * instead, see {@link ReadTasks}.
+ *
  * @author schepanovsky@gmail.com
  */
 public final class Reader {
@@ -20,6 +31,14 @@ public final class Reader {
     private String server;
     private String path;
     private int timeout;
+    private Checkpoint checkpoint;
+    private Journal journal;
+    private PayloadStore payloads;
+    private SpillFile spill;
+    private boolean spreadReads;
+    private PathFilter filter;
+    private int virtualInFlight;
+    private boolean target;
 
     /**
      * Create new reader instance for a given source.
@@ -41,37 +60,157 @@ public final class Reader {
         path = source.substring(p);
     }
 
+    /**
+     * Read only data and children that changed since {@code checkpoint}, and
+     * record what was read into it.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Skip subtrees completed by the copy being resumed; only their names are
+     * read, so they are not deleted as deprecated.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Intern the data of every node read into {@code payloads}, so nodes with
+     * the same data share it. Only used when reading the whole tree, streamed
+     * nodes release their data once written.
+     */
+    public void setPayloadStore(PayloadStore payloads) {
+        this.payloads = payloads;
+    }
+
+    /**
+     * Keep node data on the heap only up to the budget of {@code spill}, and
+     * spill the rest to it. Only used when reading the whole tree, and not
+     * with a {@link PayloadStore}, which spills shared payloads itself.
+     */
+    public void setSpillFile(SpillFile spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * Pin each worker's session to one server of the connect string,
+     * round-robin, instead of letting every session pick any of them. Workers
+     * on a slow server read fewer nodes, since idle workers steal its work,
+     * but reading fails if a server goes down, see {@link Ensemble}.
+     */
+    public void setSpreadReads(boolean spreadReads) {
+        this.spreadReads = spreadReads;
+    }
+
+    /**
+     * Skip the subtrees {@code filter} does not accept: none of their nodes
+     * is read, and they are left out of the tree and of the names of their
+     * parents.
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Read every node in a virtual thread of its own, with one session per
+     * {@code threads} given to the constructor and up to {@code inFlight}
+     * reads in flight on each; 0 to use a worker thread per session.
+     */
+    public void setVirtualThreads(int inFlight) {
+        this.virtualInFlight = inFlight;
+    }
+
+    /**
+     * Read a target tree to compare the source against: every node keeps the
+     * {@link com.github.ksprojects.zkcopy.DataDigest} of its data instead of
+     * the data itself, and reads are recorded under the target metrics, not
+     * counted as read from the source.
+     */
+    public void setTarget(boolean target) {
+        this.target = target;
+    }
+
     /**
      * Read data from the source.
      */
     public Node read() {
+        return readTree(null);
+    }
+
+    /**
+     * Read data from the source, handing every node over to {@code stream} as
+     * soon as it has been read instead of building the whole tree. The stream
+     * is closed, or failed, once reading is over.
+     *
+     * @return {@code true} if the whole source was read
+     */
+    public boolean read(NodeStream stream) {
+        Node root = null;
+        try {
+            root = readTree(stream);
+        } finally {
+            try {
+                if (root == null) {
+                    stream.fail();
+                } else {
+                    stream.close();
+                }
+            } catch (InterruptedException e) {
+                logger.error("Could not close node stream", e);
+            }
+        }
+        return root != null;
+    }
+
+    private Node readTree(NodeStream stream) {
         logger.info("Reading " + path + " from " + server);
 
         Node znode = new Node(path);
 
-        ReaderThreadFactory threadFactory = new ReaderThreadFactory(server, timeout);
-        ExecutorService pool = Executors.newFixedThreadPool(threadsNumber, threadFactory);
-        AtomicInteger totalCounter = new AtomicInteger(0);
-        AtomicInteger processedCounter = new AtomicInteger(0);
+        Ensemble ensemble = Ensemble.of(server, spreadReads);
+        ReaderThreadFactory threadFactory = null;
+        ForkJoinPool pool = null;
+        ReadTasks tasks = null;
+        ReadProgress progress = new ReadProgress();
         AtomicBoolean failed = new AtomicBoolean(false);
-        pool.execute(new NodeReader(pool, znode, totalCounter, processedCounter, failed));
+        PayloadStore store = stream == null ? payloads : null;
         try {
-            while (true) {
-                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
-                    logger.info("Completed.");
-                    break;
-                }
-                logger.info("Processing, total=" + totalCounter + ", processed=" + processedCounter);
-                if (totalCounter.get() == processedCounter.get()) {
-                    // all work finished
-                    pool.shutdown();
-                }
+            if (virtualInFlight > 0) {
+                tasks = ReadTasks.open(ensemble, threadsNumber, virtualInFlight, timeout);
+            } else {
+                threadFactory = ReaderThreadFactory.open(ensemble, threadsNumber, timeout);
+                pool = new ForkJoinPool(threadsNumber, threadFactory, null, false);
+            }
+            NodeReader root = new NodeReader(znode, progress, failed, stream, checkpoint, journal, store,
+                    stream == null ? spill : null, filter, tasks, target);
+            if (tasks != null) {
+                tasks.submit(root);
+            } else {
+                pool.execute(root);
+            }
+            while (!progress.await(1, TimeUnit.SECONDS)) {
+                logger.info("Processing, total=" + progress.getStarted() + ", processed="
+                        + (progress.getStarted() - progress.getInFlight()));
             }
+            logger.info("Completed.");
+            if (store != null) {
+                logger.info(store);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot connect to source Zookeeper", e);
+            return null;
         } catch (InterruptedException e) {
             logger.error("Await Termination of pool was unsuccessful", e);
             return null;
         } finally {
-            threadFactory.closeZookeepers();
+            if (tasks != null) {
+                tasks.close();
+            } else if (pool != null) {
+                pool.shutdownNow();
+                threadFactory.closeZookeepers();
+            }
         }
         if (failed.get()) {
             return null;
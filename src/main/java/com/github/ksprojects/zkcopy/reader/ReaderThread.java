@@ -1,24 +1,22 @@
 package com.github.ksprojects.zkcopy.reader;
 
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import org.apache.zookeeper.ZooKeeper;
 
-final class ReaderThread extends Thread implements Watcher {
+/**
+ * Reader worker reading through a source session of the
+ * {@link ReaderThreadFactory}, which outlives the worker.
+ */
+final class ReaderThread extends ForkJoinWorkerThread {
 
-    private ZooKeeper zk = null;
+    private final ZooKeeper zk;
 
-    ReaderThread(Runnable r, ZooKeeper zk) {
-        super(r);
+    ReaderThread(ForkJoinPool pool, ZooKeeper zk) {
+        super(pool);
         this.zk = zk;
     }
 
-    @Override
-    public void process(WatchedEvent event) {
-        // TODO Auto-generated method stub
-
-    }
-
     public ZooKeeper getZooKeeper() {
         return zk;
     }
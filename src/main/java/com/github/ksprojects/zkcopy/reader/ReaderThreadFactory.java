@@ -2,46 +2,62 @@ package com.github.ksprojects.zkcopy.reader;
 
 import com.github.ksprojects.zkcopy.LoggingWatcher;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ThreadFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.ZooKeeper;
 
-final class ReaderThreadFactory implements ThreadFactory {
+/**
+ * Creates reader workers over a fixed set of source sessions, as many as the
+ * pool has workers. Every new worker is given the next session round-robin,
+ * so workers the pool creates to replace retired ones share sessions with
+ * the workers still running, and sessions are opened once and closed once,
+ * by {@link #closeZookeepers()}.
+ */
+final class ReaderThreadFactory implements ForkJoinWorkerThreadFactory {
     
     private static final Logger LOG = Logger.getLogger(ReaderThreadFactory.class);
 
-    private final String hostPort;
-    private int timeout;
+    private final List<ZooKeeper> sessions;
+    private final AtomicInteger next = new AtomicInteger();
 
-    private Set<ZooKeeper> zkCache = new HashSet<>();
-
-    ReaderThreadFactory(String hostPort, int timeout) {
-        this.hostPort = hostPort;
-        this.timeout = timeout;
+    ReaderThreadFactory(List<ZooKeeper> sessions) {
+        this.sessions = sessions;
     }
 
-    public Thread newThread(Runnable r) {
-        ZooKeeper zooKeeper;
+    /**
+     * Open {@code sessionsNumber} sessions to {@code ensemble}.
+     */
+    static ReaderThreadFactory open(Ensemble ensemble, int sessionsNumber, int timeout) throws IOException {
+        List<ZooKeeper> sessions = new ArrayList<>(sessionsNumber);
+        ReaderThreadFactory factory = new ReaderThreadFactory(sessions);
         try {
-            zooKeeper = new ZooKeeper(hostPort, timeout, new LoggingWatcher());
+            for (int i = 0; i < sessionsNumber; i++) {
+                sessions.add(new ZooKeeper(ensemble.connectString(i), timeout, new LoggingWatcher()));
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Cannot connect to source Zookeeper", e);
+            factory.closeZookeepers();
+            throw e;
         }
-        zkCache.add(zooKeeper);
-        return new ReaderThread(r, zooKeeper);
+        return factory;
+    }
+
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        return new ReaderThread(pool, sessions.get((next.getAndIncrement() & Integer.MAX_VALUE) % sessions.size()));
     }
 
     public void closeZookeepers() {
-        for (ZooKeeper zk : zkCache) {
-            if (zk != null) {
-                try {
-                    zk.close();
-                } catch (InterruptedException e) {
-                    LOG.warn("There was an error closing a source zookeeper connection", e);
-                }
+        for (ZooKeeper zk : sessions) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                LOG.warn("There was an error closing a source zookeeper connection", e);
             }
         }
     }
-}
\ No newline at end of file
+}
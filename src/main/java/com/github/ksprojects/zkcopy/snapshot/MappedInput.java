@@ -0,0 +1,86 @@
+package com.github.ksprojects.zkcopy.snapshot;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sequential reader over a memory-mapped file. The file is mapped in windows,
+ * so snapshots larger than 2 GB can be read as well.
+ */
+final class MappedInput implements Closeable {
+    private static final long WINDOW = 256L << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    MappedInput(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        map(0, 0);
+    }
+
+    private void map(long position, int needed) throws IOException {
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW, needed),
+                size - position));
+    }
+
+    /**
+     * Make sure the next {@code bytes} bytes are mapped.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            long position = bufferStart + buffer.position();
+            if (size - position < bytes) {
+                throw new EOFException("Unexpected end of snapshot at " + position);
+            }
+            map(position, bytes);
+        }
+    }
+
+    byte readByte() throws IOException {
+        ensure(1);
+        return buffer.get();
+    }
+
+    int readInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    long readLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    byte[] readBytes(int length) throws IOException {
+        ensure(length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    String readString() throws IOException {
+        return readString(readInt());
+    }
+
+    String readString(int length) throws IOException {
+        return new String(readBytes(length), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        file.close();
+    }
+}
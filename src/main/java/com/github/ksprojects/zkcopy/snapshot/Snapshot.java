@@ -0,0 +1,48 @@
+package com.github.ksprojects.zkcopy.snapshot;
+
+/**
+ * Layout of a snapshot file.
+ *
+ * <p>A snapshot starts with {@link #MAGIC}, the format {@link #VERSION} and the
+ * length-prefixed absolute path of the tree root on the source. Then follows
+ * one record per node, every node before any of its children:
+ * <ul>
+ * <li>path relative to the root, length-prefixed, empty for the root</li>
+ * <li>flags byte, see {@link #EPHEMERAL}</li>
+ * <li>mtime as a long</li>
+ * <li>length-prefixed data, length -1 for {@code null}</li>
+ * <li>number of children followed by their length-prefixed names</li>
+ * </ul>
+ * A path length of -1 ends the snapshot. Strings are UTF-8, numbers are big
+ * endian.
+ */
+final class Snapshot {
+    static final byte[] MAGIC = {'Z', 'K', 'C', 'O', 'P', 'Y'};
+    static final int VERSION = 1;
+    static final int END = -1;
+    static final byte EPHEMERAL = 1;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Returns path of a node relative to the snapshot root.
+     */
+    static String relative(String rootPath, String path) {
+        if (path.equals(rootPath)) {
+            return "";
+        }
+        return "/".equals(rootPath) ? path : path.substring(rootPath.length());
+    }
+
+    /**
+     * Returns absolute path of a node from its path relative to the snapshot
+     * root.
+     */
+    static String absolute(String rootPath, String relative) {
+        if (relative.isEmpty()) {
+            return rootPath;
+        }
+        return "/".equals(rootPath) ? relative : rootPath + relative;
+    }
+}
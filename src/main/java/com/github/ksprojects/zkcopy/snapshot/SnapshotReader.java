@@ -0,0 +1,85 @@
+package com.github.ksprojects.zkcopy.snapshot;
+
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a snapshot file, see {@link Snapshot} for the format.
+ *
+ * <p>The file is memory-mapped and nodes are handed over to a
+ * {@link NodeStream} one by one, so only the queued nodes are held on heap.
+ * Streamed nodes carry their absolute path and the names of their children but
+ * no parent, see {@link Node#Node(String)}.
+ */
+public final class SnapshotReader {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotReader.class);
+
+    private final File file;
+
+    /**
+     * Create new snapshot reader for the given file.
+     */
+    public SnapshotReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the snapshot, handing every node over to {@code stream}. The stream
+     * is closed, or failed, once reading is over.
+     *
+     * @return {@code true} if the whole snapshot was read
+     */
+    public boolean read(NodeStream stream) {
+        boolean completed = false;
+        long nodes = 0;
+        try (MappedInput in = new MappedInput(file)) {
+            byte[] magic = in.readBytes(Snapshot.MAGIC.length);
+            if (!Arrays.equals(magic, Snapshot.MAGIC)) {
+                throw new IOException(file + " is not a zkcopy snapshot");
+            }
+            int version = in.readInt();
+            if (version != Snapshot.VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            String rootPath = in.readString();
+            LOGGER.info("Reading snapshot of " + rootPath + " from " + file);
+            int pathLength;
+            while ((pathLength = in.readInt()) != Snapshot.END) {
+                Node node = new Node(Snapshot.absolute(rootPath, in.readString(pathLength)));
+                node.setEphemeral((in.readByte() & Snapshot.EPHEMERAL) != 0);
+                node.setMtime(in.readLong());
+                int dataLength = in.readInt();
+                node.setData(dataLength < 0 ? null : in.readBytes(dataLength));
+                int children = in.readInt();
+                node.reserveChildren(children);
+                for (int i = 0; i < children; i++) {
+                    node.appendChildName(in.readString());
+                }
+                if (!stream.put(node)) {
+                    return false;
+                }
+                nodes++;
+            }
+            completed = true;
+            LOGGER.info("Completed. Read " + nodes + " nodes");
+            return true;
+        } catch (IOException | InterruptedException e) {
+            LOGGER.error("Could not read snapshot " + file, e);
+            return false;
+        } finally {
+            try {
+                if (completed) {
+                    stream.close();
+                } else {
+                    stream.fail();
+                }
+            } catch (InterruptedException e) {
+                LOGGER.error("Could not close node stream", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.ksprojects.zkcopy.snapshot;
+
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a tree read from the source to a snapshot file, see {@link Snapshot}
+ * for the format.
+ */
+public final class SnapshotWriter {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotWriter.class);
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File file;
+    private long nodes;
+
+    /**
+     * Create new snapshot writer for the given file, which is overwritten.
+     */
+    public SnapshotWriter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Write a complete tree.
+     */
+    public void write(Node root) throws IOException {
+        String rootPath = root.getAbsolutePath();
+        try (DataOutputStream out = open(rootPath)) {
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                writeNode(out, rootPath, node);
+                List<Node> children = node.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    pending.push(children.get(i));
+                }
+            }
+            out.writeInt(Snapshot.END);
+        }
+        logCompleted();
+    }
+
+    /**
+     * Write nodes as they arrive from {@code stream}, starting with the root.
+     * Nothing is kept after a node has been written.
+     *
+     * @return {@code false} if reading the source failed, the snapshot is then
+     *         incomplete
+     */
+    public boolean write(NodeStream stream) throws IOException, InterruptedException {
+        boolean completed = false;
+        try {
+            Node root = stream.take();
+            if (root == null) {
+                LOGGER.error("Reading source failed, no snapshot written");
+                return false;
+            }
+            String rootPath = root.getAbsolutePath();
+            try (DataOutputStream out = open(rootPath)) {
+                Node node = root;
+                while (node != null) {
+                    writeNode(out, rootPath, node);
+                    node = stream.take();
+                }
+                if (stream.isFailed()) {
+                    LOGGER.error("Reading source failed, snapshot " + file + " is incomplete");
+                    return false;
+                }
+                out.writeInt(Snapshot.END);
+            }
+            completed = true;
+            logCompleted();
+            return true;
+        } finally {
+            if (!completed) {
+                stream.abort();
+            }
+        }
+    }
+
+    private DataOutputStream open(String rootPath) throws IOException {
+        LOGGER.info("Writing snapshot of " + rootPath + " to " + file);
+        nodes = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        out.write(Snapshot.MAGIC);
+        out.writeInt(Snapshot.VERSION);
+        writeString(out, rootPath);
+        return out;
+    }
+
+    private void writeNode(DataOutputStream out, String rootPath, Node node) throws IOException {
+        writeString(out, Snapshot.relative(rootPath, node.getAbsolutePath()));
+        out.writeByte(node.isEphemeral() ? Snapshot.EPHEMERAL : 0);
+        out.writeLong(node.getMtime());
+        byte[] data = node.getData();
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.writeInt(node.getChildrenNamed().size());
+        for (String child : node.getChildrenNamed()) {
+            writeString(out, child);
+        }
+        nodes++;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void logCompleted() {
+        LOGGER.info("Wrote " + nodes + " nodes, " + file.length() + " bytes to snapshot " + file);
+    }
+}
@@ -1,8 +1,24 @@
 package com.github.ksprojects.zkcopy.writer;
 
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Transaction;
 import org.apache.zookeeper.ZooKeeper;
@@ -10,14 +26,65 @@ import org.apache.zookeeper.data.ACL;
 
 /**
  * A ZK Transaction Wrapper that automatically commits your transaction and
- * transparently creates the next one every {@link #transactionSize} operations.
+ * transparently creates the next one every {@link #transactionSize} operations,
+ * or earlier if the next operation would make the serialized transaction larger
+ * than {@link #transactionBytes}.
+ *
+ * <p>With more than one commit in flight, full transactions are committed in
+ * the background so the caller can keep queuing operations. A transaction
+ * touching a path that is equal to, an ancestor of or a descendant of a path in
+ * an uncommitted earlier transaction is held back until that transaction has
+ * been committed, so e.g. a child is never created before its parent.
+ *
+ * <p>A transaction the target rejects is committed in parts by
+ * {@link CommitRecovery}. Once an operation had to be skipped, actions
+ * registered with {@link #afterCommit(Runnable)} no longer run.
  */
 class AutoCommitTransactionWrapper extends Transaction {
 
+    /**
+     * Default byte budget of a transaction, just under the default
+     * {@code jute.maxbuffer} of 1 MB to leave room for request headers.
+     */
+    static final int DEFAULT_TRANSACTION_BYTES = 1000 * 1024;
+
+    /**
+     * Serialized size of a multi() request without operations: request header,
+     * and the terminating multi header.
+     */
+    private static final int TRANSACTION_OVERHEAD = 8 + 9;
+
+    /**
+     * Serialized size of the multi header preceding every operation.
+     */
+    private static final int OP_OVERHEAD = 9;
+
     private Transaction transaction;
+    /**
+     * Operations of {@link #transaction}, for committing them in parts.
+     */
+    private List<Op> ops = new ArrayList<>();
     int transactionSize;
+    int transactionBytes;
     private int opsSinceCommit = 0;
+    private int bytesSinceCommit = TRANSACTION_OVERHEAD;
     private ZooKeeper zk;
+    private Batch batch;
+    private List<Batch> inFlight;
+    private Semaphore inFlightPermits;
+    private ExecutorService committers;
+    private Throttle throttle;
+    private final CommitRecovery recovery;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    /**
+     * Actions waiting for the operations queued before them to be committed.
+     */
+    private List<Runnable> actions = new ArrayList<>();
+    /**
+     * Transactions committed in the background, in submission order, whose
+     * actions have not run yet.
+     */
+    private final Deque<Batch> unacknowledged = new ArrayDeque<>();
 
     /**
      *
@@ -28,55 +95,417 @@ class AutoCommitTransactionWrapper extends Transaction {
      *            have to perform you last {@link #commit()} manually </em>
      */
     protected AutoCommitTransactionWrapper(ZooKeeper zk, int transactionSize) {
+        this(zk, transactionSize, DEFAULT_TRANSACTION_BYTES);
+    }
+
+    /**
+     *
+     * @param zk
+     *            Zookeeper server to commit transactions to.
+     * @param transactionSize
+     *            Number of operations to perform before commiting, <em>n.b you will
+     *            have to perform you last {@link #commit()} manually </em>
+     * @param transactionBytes
+     *            Maximum serialized size of a transaction; a single operation
+     *            larger than this is committed on its own
+     */
+    protected AutoCommitTransactionWrapper(ZooKeeper zk, int transactionSize, int transactionBytes) {
         super(zk);
         transaction = zk.transaction();
         this.zk = zk;
         this.transactionSize = transactionSize;
+        this.transactionBytes = transactionBytes;
+        this.recovery = new CommitRecovery(zk);
+    }
+
+    /**
+     *
+     * @param zk
+     *            Zookeeper server to commit transactions to.
+     * @param transactionSize
+     *            Number of operations to perform before commiting, <em>n.b you will
+     *            have to perform you last {@link #commit()} manually </em>
+     * @param transactionBytes
+     *            Maximum serialized size of a transaction; a single operation
+     *            larger than this is committed on its own
+     * @param commitsInFlight
+     *            Maximum number of transactions being committed concurrently
+     */
+    protected AutoCommitTransactionWrapper(ZooKeeper zk, int transactionSize, int transactionBytes,
+            int commitsInFlight) {
+        this(zk, transactionSize, transactionBytes);
+        if (commitsInFlight > 1) {
+            batch = new Batch();
+            inFlight = new ArrayList<>(commitsInFlight);
+            inFlightPermits = new Semaphore(commitsInFlight);
+            committers = Executors.newFixedThreadPool(commitsInFlight, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "zkcopy-committer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Pace commits, and adapt the transaction size, with {@code throttle}.
+     */
+    void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Run {@code action} once every operation queued so far has been
+     * committed, after the actions registered before it. Actions of
+     * transactions committed in the background run on a committer thread.
+     */
+    void afterCommit(Runnable action) {
+        actions.add(action);
     }
 
     @Override
     public Transaction create(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
-        maybeCommitTransaction();
-        return transaction.create(path, data, acl, createMode);
+        int size = createSize(path, data, acl);
+        reserve(size);
+        track(path);
+        transaction.create(path, data, acl, createMode);
+        ops.add(Op.create(path, data, acl, createMode));
+        added(size);
+        return this;
     }
 
     @Override
     public Transaction delete(String path, int version) {
-        maybeCommitTransaction();
-        return transaction.delete(path, version);
+        int size = deleteSize(path);
+        reserve(size);
+        track(path);
+        transaction.delete(path, version);
+        ops.add(Op.delete(path, version));
+        added(size);
+        return this;
     }
 
     @Override
     public Transaction check(String path, int version) {
-        maybeCommitTransaction();
-        return transaction.check(path, version);
+        int size = checkSize(path);
+        reserve(size);
+        track(path);
+        transaction.check(path, version);
+        ops.add(Op.check(path, version));
+        added(size);
+        return this;
     }
 
     @Override
     public Transaction setData(String path, byte[] data, int version) {
-        maybeCommitTransaction();
-        return transaction.setData(path, data, version);
+        int size = setDataSize(path, data);
+        reserve(size);
+        track(path);
+        transaction.setData(path, data, version);
+        ops.add(Op.setData(path, data, version));
+        added(size);
+        return this;
     }
 
     @Override
     public List<OpResult> commit() throws InterruptedException, KeeperException {
-        return transaction.commit();
+        if (committers == null) {
+            List<OpResult> results = commitBatch(transaction, ops, bytesSinceCommit);
+            runActions();
+            return results;
+        }
+        try {
+            for (Batch pending : inFlight) {
+                try {
+                    pending.future.get();
+                } catch (ExecutionException e) {
+                    // recorded in failure
+                }
+            }
+            inFlight.clear();
+            Exception e = failure.get();
+            if (e instanceof KeeperException) {
+                throw (KeeperException) e;
+            } else if (e != null) {
+                throw new RuntimeException(e);
+            }
+            List<OpResult> results = commitBatch(transaction, ops, bytesSinceCommit);
+            runActions();
+            return results;
+        } finally {
+            committers.shutdown();
+        }
     }
 
-    private void maybeCommitTransaction() {
-        if (opsSinceCommit >= (transactionSize - 1)) {
-            try {
-                Writer.logger.info("Committing transaction");
-                transaction.commit();
-                opsSinceCommit = 0;
-                transaction = zk.transaction();
-            } catch (InterruptedException | KeeperException e) {
-                throw new RuntimeException(e);
+    /**
+     * Commit queued operations if an operation of the given size would not fit.
+     */
+    private void reserve(int size) {
+        if (opsSinceCommit > 0 && bytesSinceCommit + size > transactionBytes) {
+            commitTransaction();
+        }
+    }
+
+    /**
+     * Account for a queued operation and commit once the transaction is full.
+     */
+    private void added(int size) {
+        opsSinceCommit++;
+        bytesSinceCommit += size;
+        if (opsSinceCommit >= (throttle == null ? transactionSize : throttle.batchSize(transactionSize))) {
+            commitTransaction();
+        }
+    }
+
+    private void commitTransaction() {
+        if (committers != null) {
+            submitTransaction();
+            return;
+        }
+        try {
+            Writer.logger.info("Committing transaction of " + opsSinceCommit + " operations, "
+                    + bytesSinceCommit + " bytes");
+            commitBatch(transaction, ops, bytesSinceCommit);
+            runActions();
+            opsSinceCommit = 0;
+            bytesSinceCommit = TRANSACTION_OVERHEAD;
+            transaction = zk.transaction();
+            ops = new ArrayList<>();
+        } catch (InterruptedException | KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void track(String path) {
+        if (batch != null) {
+            batch.add(path);
+        }
+    }
+
+    /**
+     * Commit the current transaction in the background once all transactions it
+     * depends on are committed.
+     */
+    private void submitTransaction() {
+        if (failure.get() != null) {
+            throw new RuntimeException(failure.get());
+        }
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        final List<Future<?>> dependencies = new ArrayList<>();
+        for (Iterator<Batch> it = inFlight.iterator(); it.hasNext();) {
+            Batch pending = it.next();
+            if (pending.future.isDone()) {
+                it.remove();
+            } else if (batch.dependsOn(pending)) {
+                dependencies.add(pending.future);
+            }
+        }
+        Writer.logger.info("Committing transaction of " + opsSinceCommit + " operations, "
+                + bytesSinceCommit + " bytes, " + dependencies.size() + " dependencies in flight");
+        final Transaction committed = transaction;
+        final List<Op> committedOps = ops;
+        final int bytes = bytesSinceCommit;
+        final Batch submitted = batch;
+        submitted.actions = actions;
+        actions = new ArrayList<>();
+        synchronized (unacknowledged) {
+            unacknowledged.add(submitted);
+        }
+        batch.future = committers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    for (Future<?> dependency : dependencies) {
+                        dependency.get();
+                    }
+                    commitBatch(committed, committedOps, bytes);
+                    acknowledge(submitted);
+                    return null;
+                } catch (InterruptedException | KeeperException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                } finally {
+                    inFlightPermits.release();
+                }
+            }
+        });
+        inFlight.add(batch);
+        batch = new Batch();
+        opsSinceCommit = 0;
+        bytesSinceCommit = TRANSACTION_OVERHEAD;
+        transaction = zk.transaction();
+        ops = new ArrayList<>();
+    }
+
+    /**
+     * Run the actions of the committed transaction.
+     */
+    private void runActions() {
+        List<Runnable> committed = actions;
+        actions = new ArrayList<>();
+        if (recovery.getSkipped() > 0) {
+            return;
+        }
+        for (Runnable action : committed) {
+            action.run();
+        }
+    }
+
+    /**
+     * Mark a transaction committed in the background and run the actions of
+     * every transaction committed so far without a gap before it.
+     */
+    private void acknowledge(Batch committed) {
+        synchronized (unacknowledged) {
+            committed.acknowledged = true;
+            while (!unacknowledged.isEmpty() && unacknowledged.peek().acknowledged) {
+                List<Runnable> committedActions = unacknowledged.poll().actions;
+                if (recovery.getSkipped() > 0) {
+                    continue;
+                }
+                for (Runnable action : committedActions) {
+                    action.run();
+                }
             }
-        } else {
-            opsSinceCommit++;
         }
+    }
+
+    /**
+     * Returns the number of operations skipped since the target rejected them,
+     * see {@link CommitRecovery}.
+     */
+    long getSkippedOps() {
+        return recovery.getSkipped();
+    }
 
+    /**
+     * Commit a transaction, paced by the throttle if there is one, and record
+     * its latency. A rejected transaction is committed in parts.
+     */
+    private List<OpResult> commitBatch(Transaction committed, List<Op> committedOps, int bytes)
+            throws InterruptedException, KeeperException {
+        if (committedOps.isEmpty()) {
+            return committed.commit();
+        }
+        if (throttle != null) {
+            throttle.acquire(committedOps.size(), bytes);
+        }
+        long start = System.nanoTime();
+        List<OpResult> results;
+        try {
+            results = committed.commit();
+        } catch (KeeperException e) {
+            // parts are timed by the recovery, the throttle only learns from whole transactions
+            List<Op> skippedOps = new ArrayList<>();
+            results = recovery.recover(committedOps, e, skippedOps);
+            Metrics.WRITE.add(committedOps.size() - skippedOps.size(), bytes);
+            return results;
+        }
+        long latency = System.nanoTime() - start;
+        Metrics.MULTI.record(latency);
+        Metrics.WRITE.add(committedOps.size(), bytes);
+        if (throttle != null) {
+            throttle.committed(committedOps.size(), latency);
+        }
+        return results;
+    }
+
+    /**
+     * Paths touched by a transaction committed in the background.
+     */
+    private static final class Batch {
+        private final Set<String> paths = new HashSet<>();
+        private final Set<String> prefixes = new HashSet<>();
+        private Future<?> future;
+        private List<Runnable> actions;
+        private boolean acknowledged;
+
+        void add(String path) {
+            paths.add(path);
+            String prefix = path;
+            while (prefixes.add(prefix)) {
+                int slash = prefix.lastIndexOf('/');
+                if (slash <= 0) {
+                    prefixes.add("/");
+                    break;
+                }
+                prefix = prefix.substring(0, slash);
+            }
+        }
+
+        /**
+         * Returns {@code true} if a path of either batch is equal to or an
+         * ancestor of a path of the other one.
+         */
+        boolean dependsOn(Batch other) {
+            for (String path : paths) {
+                if (other.prefixes.contains(path)) {
+                    return true;
+                }
+            }
+            for (String path : other.paths) {
+                if (prefixes.contains(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static int createSize(String path, byte[] data, List<ACL> acl) {
+        int size = OP_OVERHEAD + stringSize(path) + bufferSize(data) + 4 + 4;
+        if (acl != null) {
+            for (ACL entry : acl) {
+                size += 4 + stringSize(entry.getId().getScheme()) + stringSize(entry.getId().getId());
+            }
+        }
+        return size;
+    }
+
+    static int setDataSize(String path, byte[] data) {
+        return OP_OVERHEAD + stringSize(path) + bufferSize(data) + 4;
+    }
+
+    static int deleteSize(String path) {
+        return OP_OVERHEAD + stringSize(path) + 4;
+    }
+
+    static int checkSize(String path) {
+        return OP_OVERHEAD + stringSize(path) + 4;
+    }
+
+    private static int bufferSize(byte[] data) {
+        return 4 + (data == null ? 0 : data.length);
+    }
+
+    /**
+     * Size of a length-prefixed UTF-8 string as written by jute.
+     */
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 4;
+        }
+        int size = 4;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
     }
 
-}
\ No newline at end of file
+}
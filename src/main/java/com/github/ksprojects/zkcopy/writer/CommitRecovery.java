@@ -0,0 +1,212 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+
+/**
+ * Commits the operations of a rejected transaction in smaller parts, so a
+ * single bad operation does not fail the whole copy.
+ *
+ * <p>Failures are classified by their code:
+ * <ul>
+ * <li>connection loss and timeouts are retried with exponential backoff,
+ * while the client re-establishes its session with some server of the
+ * ensemble. As a server closes the connection on a request larger than its
+ * {@code jute.maxbuffer}, a transaction that keeps failing this way is also
+ * bisected;</li>
+ * <li>codes caused by a single operation, e.g. a node created or deleted on
+ * the target meanwhile, are {@code NODEEXISTS}, {@code NONODE},
+ * {@code NOTEMPTY}, {@code BADVERSION}, {@code NOCHILDRENFOREPHEMERALS} and
+ * {@code INVALIDACL}. The transaction is split before the
+ * operation reported as failed, or in halves if none is, until the operation
+ * is on its own. It is then reconciled: an existing node is updated instead
+ * of created, a missing one created instead of updated, and a missing node
+ * is not deleted. Operations that cannot be reconciled are skipped and
+ * logged;</li>
+ * <li>any other code, e.g. an expired session or a missing permission, would
+ * fail every part alike, so it fails the commit as before.</li>
+ * </ul>
+ *
+ * <p>Parts are committed in their original order, so a child is still never
+ * created before its parent; the transaction is no longer atomic, which a
+ * copy does not rely on.
+ */
+final class CommitRecovery {
+    /**
+     * Attempts after a connection loss before giving up.
+     */
+    static final int MAX_RETRIES = 8;
+    static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final ZooKeeper zk;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    CommitRecovery(ZooKeeper zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * Commit {@code ops}, whose transaction failed with {@code failure}.
+     *
+     * @param skippedOps
+     *            receives the operations that were skipped
+     * @return results of the operations committed
+     * @throws KeeperException
+     *             if the failure cannot be recovered from
+     */
+    List<OpResult> recover(List<Op> ops, KeeperException failure, List<Op> skippedOps)
+            throws KeeperException, InterruptedException {
+        rejected.incrementAndGet();
+        Writer.logger.warn("Transaction of " + ops.size() + " operations was rejected with " + failure.code()
+                + ", committing it in parts");
+        List<OpResult> results = new ArrayList<>(ops.size());
+        resolve(ops, failure, 0, results, skippedOps);
+        return results;
+    }
+
+    /**
+     * Returns the number of transactions that were rejected.
+     */
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of operations skipped since they could not be
+     * committed.
+     */
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    private void attempt(List<Op> ops, int retries, List<OpResult> results, List<Op> skippedOps)
+            throws KeeperException, InterruptedException {
+        try {
+            results.addAll(multi(ops));
+        } catch (KeeperException e) {
+            resolve(ops, e, retries, results, skippedOps);
+        }
+    }
+
+    private void resolve(List<Op> ops, KeeperException failure, int retries, List<OpResult> results,
+            List<Op> skippedOps) throws KeeperException, InterruptedException {
+        switch (failure.code()) {
+            case CONNECTIONLOSS:
+            case OPERATIONTIMEOUT:
+                if (retries >= MAX_RETRIES) {
+                    throw failure;
+                }
+                backoff(retries);
+                if (retries > 0 && ops.size() > 1) {
+                    // failing again, possibly too large for the server
+                    bisect(ops, ops.size() / 2, retries + 1, results, skippedOps);
+                } else {
+                    attempt(ops, retries + 1, results, skippedOps);
+                }
+                break;
+            case NODEEXISTS:
+            case NONODE:
+            case NOTEMPTY:
+            case BADVERSION:
+            case NOCHILDRENFOREPHEMERALS:
+            case INVALIDACL:
+                if (ops.size() == 1) {
+                    reconcile(ops.get(0), failure, results, skippedOps);
+                } else {
+                    int failed = failedIndex(failure);
+                    bisect(ops, failed < 0 ? ops.size() / 2 : Math.max(failed, 1), retries, results, skippedOps);
+                }
+                break;
+            default:
+                throw failure;
+        }
+    }
+
+    private void bisect(List<Op> ops, int at, int retries, List<OpResult> results, List<Op> skippedOps)
+            throws KeeperException, InterruptedException {
+        attempt(ops.subList(0, at), retries, results, skippedOps);
+        attempt(ops.subList(at, ops.size()), retries, results, skippedOps);
+    }
+
+    /**
+     * Commit a single operation that failed on its own, adapted to the state
+     * of the target, or skip it.
+     */
+    private void reconcile(Op op, KeeperException failure, List<OpResult> results, List<Op> skippedOps)
+            throws KeeperException, InterruptedException {
+        Op replacement = null;
+        if (op.getType() == ZooDefs.OpCode.delete && failure.code() == KeeperException.Code.NONODE) {
+            Writer.logger.debug("Node " + op.getPath() + " to delete is already gone");
+            return;
+        } else if (op.getType() == ZooDefs.OpCode.create && failure.code() == KeeperException.Code.NODEEXISTS) {
+            replacement = Op.setData(op.getPath(), ((CreateRequest) op.toRequestRecord()).getData(), -1);
+        } else if (op.getType() == ZooDefs.OpCode.setData && failure.code() == KeeperException.Code.NONODE) {
+            replacement = Op.create(op.getPath(), ((SetDataRequest) op.toRequestRecord()).getData(),
+                    Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        if (replacement != null) {
+            try {
+                results.addAll(multi(Collections.singletonList(replacement)));
+                Writer.logger.info("Node " + op.getPath() + " changed on the target meanwhile, "
+                        + (op.getType() == ZooDefs.OpCode.create ? "updated" : "created") + " it instead");
+                return;
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NODEEXISTS && e.code() != KeeperException.Code.NONODE) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        skippedOps.add(op);
+        skipped.incrementAndGet();
+        Writer.logger.error("Skipping operation on " + op.getPath() + ", it failed with " + failure.code());
+    }
+
+    private List<OpResult> multi(List<Op> ops) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        List<OpResult> results = zk.multi(ops);
+        Metrics.MULTI.recordSince(start);
+        return results == null ? Collections.<OpResult>emptyList() : results;
+    }
+
+    /**
+     * Returns the index of the operation that failed the transaction, or -1
+     * if the server did not tell.
+     */
+    private static int failedIndex(KeeperException failure) {
+        List<OpResult> results = failure.getResults();
+        if (results == null) {
+            return -1;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) instanceof OpResult.ErrorResult) {
+                int err = ((OpResult.ErrorResult) results.get(i)).getErr();
+                if (err != KeeperException.Code.OK.intValue()
+                        && err != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void backoff(int retries) throws InterruptedException {
+        long millis = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(retries, 16));
+        Writer.logger.warn("Connection to the target lost, retrying in " + millis + " ms");
+        Thread.sleep(millis);
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Writes the same tree to several targets at once, each from its own thread,
+ * so a slow or failing target does not hold up the others.
+ */
+public final class FanOut {
+
+    /**
+     * Writes the tree to a single target.
+     */
+    public interface Target {
+        /**
+         * Write the tree to the target at {@code location}.
+         *
+         * @return {@code true} if all nodes were written
+         */
+        boolean write(String location) throws IOException, KeeperException, InterruptedException;
+    }
+
+    private FanOut() {
+    }
+
+    /**
+     * Write to every location at once and wait until all are done.
+     *
+     * @return the locations that could not be written completely, empty if all
+     *         were
+     */
+    public static List<String> write(List<String> locations, final Target target) throws InterruptedException {
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> writers = new ArrayList<>(locations.size());
+        for (final String location : locations) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean written = false;
+                    try {
+                        written = target.write(location);
+                    } catch (IOException | KeeperException | InterruptedException | RuntimeException e) {
+                        Writer.logger.error("Could not write to " + location, e);
+                    }
+                    if (!written) {
+                        failed.add(location);
+                    }
+                }
+            }, "zkcopy-writer-" + location);
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,466 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.Journal;
+import com.github.ksprojects.zkcopy.PathFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Mirrors changes of the source tree to the target as they happen, after an
+ * initial copy.
+ *
+ * <p>Every source node carries a data and a child watch. Watches fire once, so
+ * each event re-reads the node with a new watch, which also picks up changes
+ * made between the event and the re-read. Data watches are set with
+ * {@code exists}, and changes are compared with the {@link Checkpoint} of what
+ * was copied: only the data of nodes whose {@code mzxid} moved is read and
+ * written, and children that disappeared are deleted from the target unless
+ * deprecated nodes are kept. A deleted node is watched until it is created
+ * again, since a node deleted and recreated between two events of its parent
+ * does not show in the parent's children.
+ * Events arriving together are written in one transaction of up to
+ * {@code batchSize} operations.
+ *
+ * <p>While a session is only disconnected, ZooKeeper restores its watches on
+ * reconnect. If the source session expires, a new one is opened and the whole
+ * source tree is walked again against the checkpoint to catch up on changes
+ * made in between.
+ */
+public class Follower implements Watcher {
+    private static final long POLL_MILLIS = 500;
+
+    private final String sourceHost;
+    private final String sourcePath;
+    private final ZooKeeper target;
+    private final String destPath;
+    private final Checkpoint checkpoint;
+    private final boolean removeDeprecated;
+    private final boolean ignoreEphemeralNodes;
+    private final int batchSize;
+    private final int timeout;
+    private int batchBytes = AutoCommitTransactionWrapper.DEFAULT_TRANSACTION_BYTES;
+    private Throttle throttle;
+    private PathFilter filter;
+    private final BlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping;
+    private ZooKeeper source;
+    private Transaction transaction;
+    private int ops;
+    /**
+     * Target paths created ({@code true}) or deleted ({@code false}) by the
+     * uncommitted transaction.
+     */
+    private final Map<String, Boolean> pending = new HashMap<>();
+    private long created;
+    private long updated;
+    private long deleted;
+
+    /**
+     * Create new {@link Follower} instance.
+     *
+     * @param sourceHost
+     *            connect string of the source ensemble
+     * @param sourcePath
+     *            root of the source tree
+     * @param target
+     *            target session
+     * @param destPath
+     *            root of the target tree
+     * @param checkpoint
+     *            state of the source as copied to the target
+     * @param removeDeprecatedNodes
+     *            {@code true} if nodes deleted on source should be deleted from
+     *            the target
+     * @param ignoreEphemeralNodes
+     *            {@code true} if ephemeral nodes should not be copied
+     * @param batchSize
+     *            maximum number of operations per transaction
+     * @param timeout
+     *            the source session timeout
+     */
+    public Follower(String sourceHost, String sourcePath, ZooKeeper target, String destPath, Checkpoint checkpoint,
+            boolean removeDeprecatedNodes, boolean ignoreEphemeralNodes, int batchSize, int timeout) {
+        this.sourceHost = sourceHost;
+        this.sourcePath = sourcePath;
+        this.target = target;
+        this.destPath = destPath;
+        this.checkpoint = checkpoint;
+        this.removeDeprecated = removeDeprecatedNodes;
+        this.ignoreEphemeralNodes = ignoreEphemeralNodes;
+        this.batchSize = batchSize;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Limit the serialized size of a single transaction.
+     *
+     * @see Writer#setBatchBytes(int)
+     */
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Pace commits to the target.
+     *
+     * @see Writer#setThrottle(Throttle)
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Neither watch nor write the subtrees {@code filter} does not accept.
+     *
+     * @see Writer#setPathFilter(PathFilter)
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Follow the source until {@link #stop()} is called or writing fails.
+     *
+     * @return {@code true} if following was stopped, {@code false} on failure
+     */
+    public boolean follow() {
+        try {
+            connect();
+            Writer.logger.info("Following changes of " + sourcePath + " on " + sourceHost);
+            while (!stopping) {
+                WatchedEvent event = events.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    continue;
+                }
+                do {
+                    try {
+                        handle(event);
+                    } catch (KeeperException.ConnectionLossException e) {
+                        // reads only, retried once the session has reconnected
+                        Writer.logger.warn("Connection lost while handling " + event + ", retrying");
+                        events.offer(event);
+                        Thread.sleep(POLL_MILLIS);
+                        break;
+                    }
+                } while (ops < batchSize && (event = events.poll()) != null);
+                flush();
+            }
+            Writer.logger.info("Stopped following. Created " + created + " nodes; Updated " + updated
+                    + " nodes; Deleted " + deleted + " nodes");
+            return true;
+        } catch (KeeperException | IOException e) {
+            Writer.logger.error("Exception caught while following changes", e);
+            return false;
+        } catch (InterruptedException e) {
+            Writer.logger.error("Following changes was interrupted", e);
+            return false;
+        } finally {
+            closeSource();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stop following and wait until changes already received are written.
+     */
+    public void stop() throws InterruptedException {
+        stopping = true;
+        stopped.await();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            Writer.logger.info("Source session " + event.getState());
+            if (event.getState() != Event.KeeperState.Expired) {
+                // watches are restored by the client when it reconnects
+                return;
+            }
+        }
+        events.offer(event);
+    }
+
+    /**
+     * Open a source session and watch the whole tree, writing whatever
+     * changed since it was copied.
+     */
+    private void connect() throws IOException, KeeperException, InterruptedException {
+        source = openSource();
+        flush();
+        watchTree(sourcePath);
+        flush();
+    }
+
+    /**
+     * Open a session to the source, with this follower as its watcher.
+     */
+    ZooKeeper openSource() throws IOException {
+        return new ZooKeeper(sourceHost, timeout, this);
+    }
+
+    private void handle(WatchedEvent event) throws KeeperException, InterruptedException, IOException {
+        switch (event.getType()) {
+            case None:
+                Writer.logger.warn("Source session expired, catching up on changes");
+                closeSource();
+                connect();
+                break;
+            case NodeDataChanged:
+                syncData(event.getPath());
+                break;
+            case NodeChildrenChanged:
+                for (String child : syncChildren(event.getPath(), false)) {
+                    watchTree(childPath(event.getPath(), child));
+                }
+                break;
+            case NodeDeleted:
+                // a node recreated meanwhile keeps its name, so its parent's children do not tell
+                if (source.exists(event.getPath(), this) != null) {
+                    watchTree(event.getPath());
+                } else if (sourcePath.equals(event.getPath())) {
+                    Writer.logger.warn("Source root " + sourcePath + " was deleted, target is kept");
+                }
+                // other nodes are deleted when their parent's children change
+                break;
+            case NodeCreated:
+                // set by the exists above, once a deleted node is back
+                watchTree(event.getPath());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Watch a subtree and write whatever changed since it was copied.
+     */
+    private void watchTree(String root) throws KeeperException, InterruptedException {
+        Deque<String> pendingPaths = new ArrayDeque<>();
+        pendingPaths.push(root);
+        while (!pendingPaths.isEmpty()) {
+            String path = pendingPaths.pop();
+            syncData(path);
+            for (String child : syncChildren(path, true)) {
+                pendingPaths.push(childPath(path, child));
+            }
+            if (ops >= batchSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Watch data of a source node again, and read and write it if it changed.
+     */
+    private void syncData(String path) throws KeeperException, InterruptedException {
+        Stat stat = source.exists(path, this);
+        if (stat == null) {
+            // deleted meanwhile, handled with the parent's children
+            return;
+        }
+        Checkpoint.Entry known = checkpoint.current(path);
+        if (known != null && known.getMzxid() == stat.getMzxid()) {
+            return;
+        }
+        byte[] data;
+        try {
+            // the watch set above fires again if the data changes after this read
+            data = source.getData(path, false, stat);
+        } catch (KeeperException.NoNodeException e) {
+            return;
+        }
+        if (!ignoreEphemeralNodes || stat.getEphemeralOwner() == 0) {
+            upsert(targetPath(path), data);
+        }
+        checkpoint.record(path, stat.getMzxid(), known == null ? -1 : known.getPzxid(),
+                known == null ? Collections.<String>emptyList() : known.getChildren());
+    }
+
+    /**
+     * Re-read children of a source node with a new watch and delete the
+     * children that disappeared from the target, or only forget them if
+     * deprecated nodes are kept.
+     *
+     * @param all
+     *            {@code true} to return all children, {@code false} to return
+     *            only those that were not known before
+     * @return names of the children to descend into
+     */
+    private List<String> syncChildren(String path, boolean all) throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        List<String> children;
+        try {
+            children = source.getChildren(path, this, stat);
+        } catch (KeeperException.NoNodeException e) {
+            return Collections.emptyList();
+        }
+        Checkpoint.Entry known = checkpoint.current(path);
+        Set<String> previous = known == null ? Collections.<String>emptySet() : new HashSet<>(known.getChildren());
+        Set<String> current = new HashSet<>(children);
+        String relativePath = filter == null ? null : Journal.relativePath(sourcePath, path);
+        for (String child : previous) {
+            if (current.contains(child) || !accepts(relativePath, child)) {
+                continue;
+            }
+            if (removeDeprecated) {
+                deleteSubtree(childPath(path, child));
+            } else {
+                forget(childPath(path, child));
+            }
+        }
+        checkpoint.record(path, known == null ? -1 : known.getMzxid(), stat.getPzxid(), children);
+        List<String> result = new ArrayList<>(children.size());
+        for (String child : children) {
+            if ("/".equals(path) && "zookeeper".equals(child)) {
+                // reserved
+                continue;
+            }
+            if ((all || !previous.contains(child)) && accepts(relativePath, child)) {
+                result.add(child);
+            }
+        }
+        return result;
+    }
+
+    private boolean accepts(String relativePath, String child) {
+        return filter == null || filter.accepts(relativePath, child);
+    }
+
+    /**
+     * Commit queued changes, if any, and start a new transaction.
+     */
+    private void flush() throws KeeperException, InterruptedException {
+        if (ops > 0) {
+            Writer.logger.info("Committing " + ops + " changes");
+            transaction.commit();
+        }
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(target, Integer.MAX_VALUE, batchBytes);
+        wrapper.setThrottle(throttle);
+        transaction = wrapper;
+        ops = 0;
+        pending.clear();
+    }
+
+    private void upsert(String path, byte[] data) throws KeeperException, InterruptedException {
+        if (targetExists(path)) {
+            transaction.setData(path, data, -1);
+            updated++;
+        } else {
+            transaction.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            pending.put(path, true);
+            created++;
+        }
+        ops++;
+    }
+
+    /**
+     * Forget a node removed on source, together with its children.
+     */
+    private void forget(String path) {
+        Checkpoint.Entry known = checkpoint.current(path);
+        if (known != null) {
+            for (String child : known.getChildren()) {
+                forget(childPath(path, child));
+            }
+            checkpoint.forget(path);
+        }
+    }
+
+    /**
+     * Delete a node removed on source from the target, together with its
+     * children, and forget it.
+     */
+    private void deleteSubtree(String path) throws KeeperException, InterruptedException {
+        Checkpoint.Entry known = checkpoint.current(path);
+        if (known != null) {
+            for (String child : known.getChildren()) {
+                deleteSubtree(childPath(path, child));
+            }
+            checkpoint.forget(path);
+        }
+        String targetPath = targetPath(path);
+        if (!targetExists(targetPath)) {
+            // e.g. an ignored ephemeral node
+            return;
+        }
+        List<String> targetChildren = pending.containsKey(targetPath) ? Collections.<String>emptyList()
+                : target.getChildren(targetPath, false);
+        for (String child : targetChildren) {
+            deleteTarget(childPath(targetPath, child));
+        }
+        transaction.delete(targetPath, -1);
+        pending.put(targetPath, false);
+        ops++;
+        deleted++;
+    }
+
+    /**
+     * Delete a target node that is not known on source, e.g. one deleted
+     * together with its parent.
+     */
+    private void deleteTarget(String path) throws KeeperException, InterruptedException {
+        if (pending.containsKey(path)) {
+            return;
+        }
+        for (String child : target.getChildren(path, false)) {
+            deleteTarget(childPath(path, child));
+        }
+        transaction.delete(path, -1);
+        pending.put(path, false);
+        ops++;
+    }
+
+    private boolean targetExists(String path) throws KeeperException, InterruptedException {
+        Boolean exists = pending.get(path);
+        if (exists != null) {
+            return exists;
+        }
+        return target.exists(path, false) != null;
+    }
+
+    private String targetPath(String path) {
+        if (path.equals(sourcePath)) {
+            return destPath;
+        }
+        String relative = "/".equals(sourcePath) ? path : path.substring(sourcePath.length());
+        return "/".equals(destPath) ? relative : destPath + relative;
+    }
+
+    private static String childPath(String path, String child) {
+        return "/".equals(path) ? "/" + child : path + "/" + child;
+    }
+
+    private void closeSource() {
+        if (source == null) {
+            return;
+        }
+        try {
+            source.close();
+        } catch (InterruptedException e) {
+            Writer.logger.warn("There was an error closing the source zookeeper connection", e);
+        }
+        source = null;
+    }
+}
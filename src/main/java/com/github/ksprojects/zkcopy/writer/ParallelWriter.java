@@ -0,0 +1,252 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.Journal;
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.VirtualThreads;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Writes a tree concurrently over several target sessions.
+ *
+ * <p>The tree is split into shards: subtrees small enough to be written by a
+ * single worker. Nodes above the shards are written first, on the first
+ * session, so every shard's parent exists before the shards are written in
+ * parallel, each worker with its own session and {@link Writer}.
+ *
+ * <p>With virtual threads, every shard is written by a task of its own with
+ * its own {@link Writer}, started for that shard alone, and the tasks share
+ * the sessions round-robin.
+ */
+public class ParallelWriter {
+    private static final int SHARDS_PER_WORKER = 8;
+    private static final int SHARDS_PER_SESSION_WITH_VIRTUAL_THREADS = 64;
+
+    private final List<ZooKeeper> sessions;
+    private final String destPath;
+    private final Node sourceRoot;
+    private final boolean removeDeprecated;
+    private final boolean ignoreEphemeralNodes;
+    private final long mtime;
+    private final int batchSize;
+    private int batchBytes = AutoCommitTransactionWrapper.DEFAULT_TRANSACTION_BYTES;
+    private int commitsInFlight = 1;
+    private TargetIndex targetIndex;
+    private Throttle throttle;
+    private Journal journal;
+    private PathFilter filter;
+    private boolean virtualThreads;
+
+    /**
+     * Create new {@link ParallelWriter} instance.
+     *
+     * @param sessions
+     *            target sessions, one per concurrent worker
+     * @param znode
+     *            root node to copy data from
+     * @see Writer#Writer(ZooKeeper, String, Node, boolean, boolean, long, int)
+     */
+    public ParallelWriter(List<ZooKeeper> sessions, String destPath, Node znode, boolean removeDeprecatedNodes,
+            boolean ignoreEphemeralNodes, long mtime, int batchSize) {
+        this.sessions = sessions;
+        this.destPath = destPath;
+        this.sourceRoot = znode;
+        this.removeDeprecated = removeDeprecatedNodes;
+        this.ignoreEphemeralNodes = ignoreEphemeralNodes;
+        this.mtime = mtime;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Limit the serialized size of a single transaction.
+     *
+     * @see Writer#setBatchBytes(int)
+     */
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Number of transactions each worker keeps being committed.
+     *
+     * @see Writer#setCommitsInFlight(int)
+     */
+    public void setCommitsInFlight(int commitsInFlight) {
+        this.commitsInFlight = commitsInFlight;
+    }
+
+    /**
+     * Prefetched view of the target tree shared by all workers.
+     *
+     * @see Writer#setTargetIndex(TargetIndex)
+     */
+    public void setTargetIndex(TargetIndex targetIndex) {
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * Pace commits of all workers together.
+     *
+     * @see Writer#setThrottle(Throttle)
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Record completed subtrees of all workers.
+     *
+     * @see Writer#setJournal(Journal)
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Leave the target subtrees {@code filter} does not accept alone.
+     *
+     * @see Writer#setPathFilter(PathFilter)
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Write every shard in a virtual thread of its own, over the sessions
+     * given to the constructor, instead of a worker thread per session.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Start process of writing data to the target.
+     *
+     * @return {@code true} if all nodes were written
+     */
+    public boolean write() {
+        Writer.logger.info("Writing data using " + sessions.size() + " sessions...");
+        final Writer summary = newWriter(sessions.get(0));
+        final Queue<Node> shards = new ConcurrentLinkedQueue<>();
+        try {
+            summary.begin();
+            Set<Node> large = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            int total = count(sourceRoot, Integer.MAX_VALUE, large);
+            int shardsPerSession = virtualThreads ? SHARDS_PER_SESSION_WITH_VIRTUAL_THREADS : SHARDS_PER_WORKER;
+            count(sourceRoot, Math.max(1, total / (sessions.size() * shardsPerSession)), large);
+            split(summary, sourceRoot, large, shards);
+            summary.commit();
+        } catch (KeeperException | InterruptedException e) {
+            Writer.logger.error("Exception caught while writing nodes", e);
+            return false;
+        }
+        Writer.logger.info("Writing " + shards.size() + " subtrees in parallel");
+
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        // a task per shard with virtual threads, otherwise a worker per session drains the queue
+        int workers = virtualThreads ? shards.size() : sessions.size();
+        final int shardsPerWorker = virtualThreads ? 1 : Integer.MAX_VALUE;
+        final List<Writer> writers = new ArrayList<>(workers);
+        ExecutorService pool = virtualThreads ? VirtualThreads.newExecutor("zkcopy-writer", sessions.size())
+                : Executors.newFixedThreadPool(sessions.size());
+        for (int i = 0; i < workers; i++) {
+            final Writer writer = newWriter(sessions.get(i % sessions.size()));
+            writers.add(writer);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.begin();
+                        Node shard;
+                        for (int written = 0; written < shardsPerWorker && !failed.get()
+                                && (shard = shards.poll()) != null; written++) {
+                            writer.writeSubtree(shard);
+                        }
+                        if (!failed.get()) {
+                            writer.commit();
+                        }
+                    } catch (KeeperException | InterruptedException | RuntimeException e) {
+                        Writer.logger.error("Exception caught while writing nodes", e);
+                        failed.set(true);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                Writer.logger.info("Writing, remaining subtrees=" + shards.size());
+            }
+        } catch (InterruptedException e) {
+            Writer.logger.error("Await Termination of pool was unsuccessful", e);
+            pool.shutdownNow();
+            return false;
+        }
+        if (failed.get()) {
+            Writer.logger.error("Writing data failed, target may be partially updated");
+            return false;
+        }
+        for (Writer writer : writers) {
+            summary.addCounters(writer);
+        }
+        summary.logSummary();
+        return summary.getSkippedOps() == 0;
+    }
+
+    private Writer newWriter(ZooKeeper session) {
+        Writer writer = new Writer(session, destPath, sourceRoot, removeDeprecated, ignoreEphemeralNodes, mtime,
+                batchSize);
+        writer.setBatchBytes(batchBytes);
+        writer.setCommitsInFlight(commitsInFlight);
+        writer.setTargetIndex(targetIndex);
+        writer.setThrottle(throttle);
+        writer.setJournal(journal);
+        writer.setPathFilter(filter);
+        return writer;
+    }
+
+    /**
+     * Count nodes of a subtree, remembering roots of subtrees larger than
+     * {@code threshold}.
+     */
+    private static int count(Node node, int threshold, Set<Node> large) {
+        int size = 1;
+        for (Node child : node.getChildren()) {
+            size += count(child, threshold, large);
+        }
+        if (size > threshold && !node.getChildren().isEmpty()) {
+            large.add(node);
+        }
+        return size;
+    }
+
+    /**
+     * Write a large node on its own and descend into its children: children
+     * with large subtrees are split further, the rest become shards.
+     */
+    private static void split(Writer writer, Node node, Set<Node> large, Queue<Node> shards)
+            throws KeeperException, InterruptedException {
+        if (!writer.writeShallow(node)) {
+            return;
+        }
+        for (Node child : node.getChildren()) {
+            if (large.contains(child)) {
+                split(writer, child, large, shards);
+            } else {
+                shards.add(child);
+            }
+        }
+    }
+}
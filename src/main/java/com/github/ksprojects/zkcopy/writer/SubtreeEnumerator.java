@@ -0,0 +1,136 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Lists every node of target subtrees about to be deleted, leaves first.
+ *
+ * <p>Children are listed with asynchronous requests, up to
+ * {@link #LISTINGS_IN_FLIGHT} at once, so a large subtree costs about one
+ * round trip per level instead of one per node. With a prefetched
+ * {@link TargetIndex} no request is made at all.
+ */
+final class SubtreeEnumerator implements Children2Callback {
+    static final int LISTINGS_IN_FLIGHT = 1000;
+
+    private final ZooKeeper zk;
+    private final TargetIndex targetIndex;
+    private final Semaphore permits = new Semaphore(LISTINGS_IN_FLIGHT);
+    private final BlockingQueue<Listing> listed = new LinkedBlockingQueue<>();
+
+    SubtreeEnumerator(ZooKeeper zk, TargetIndex targetIndex) {
+        this.zk = zk;
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * Returns the paths of all nodes of the subtrees rooted at {@code roots},
+     * every node after all of its children, so deleting them in this order
+     * never deletes a node that still has children.
+     */
+    List<String> leavesFirst(Collection<String> roots) throws KeeperException, InterruptedException {
+        Map<String, Collection<String>> children = targetIndex != null ? indexed(roots) : list(roots);
+        List<String> paths = new ArrayList<>(children.size());
+        Deque<String> pending = new ArrayDeque<>();
+        for (String root : roots) {
+            // a node is added before its children, so the reverse lists every node after them
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                String path = pending.pop();
+                paths.add(path);
+                for (String child : children.get(path)) {
+                    pending.push(childPath(path, child));
+                }
+            }
+        }
+        Collections.reverse(paths);
+        return paths;
+    }
+
+    private Map<String, Collection<String>> indexed(Collection<String> roots) {
+        Map<String, Collection<String>> children = new HashMap<>();
+        Deque<String> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            String path = pending.pop();
+            Node node = targetIndex.get(path);
+            Collection<String> names = node == null ? Collections.<String>emptySet() : node.getChildrenNamed();
+            children.put(path, names);
+            for (String child : names) {
+                pending.push(childPath(path, child));
+            }
+        }
+        return children;
+    }
+
+    private Map<String, Collection<String>> list(Collection<String> roots)
+            throws KeeperException, InterruptedException {
+        Map<String, Collection<String>> children = new HashMap<>();
+        int outstanding = 0;
+        for (String root : roots) {
+            request(root);
+            outstanding++;
+        }
+        while (outstanding > 0) {
+            Listing listing = listed.take();
+            outstanding--;
+            if (listing.rc == KeeperException.Code.NONODE.intValue()) {
+                // gone already, deleting it fails the batch as it would have before
+                children.put(listing.path, Collections.<String>emptyList());
+                continue;
+            }
+            if (listing.rc != KeeperException.Code.OK.intValue()) {
+                throw KeeperException.create(KeeperException.Code.get(listing.rc), listing.path);
+            }
+            children.put(listing.path, listing.children);
+            for (String child : listing.children) {
+                request(childPath(listing.path, child));
+                outstanding++;
+            }
+        }
+        return children;
+    }
+
+    private void request(String path) throws InterruptedException {
+        permits.acquire();
+        zk.getChildren(path, false, this, System.nanoTime());
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+        permits.release();
+        Metrics.TARGET_GET_CHILDREN.recordSince((Long) ctx);
+        listed.offer(new Listing(path, rc, children));
+    }
+
+    private static String childPath(String path, String child) {
+        return "/".equals(path) ? "/" + child : path + "/" + child;
+    }
+
+    private static final class Listing {
+        private final String path;
+        private final int rc;
+        private final List<String> children;
+
+        Listing(String path, int rc, List<String> children) {
+            this.path = path;
+            this.rc = rc;
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import com.github.ksprojects.zkcopy.DataDigest;
+import com.github.ksprojects.zkcopy.Node;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory view of the target tree, read up front so the {@link Writer} can
+ * decide between create, update and delete without a round-trip per node.
+ *
+ * <p>The index is not updated while writing; every target path is looked up
+ * at most once, before it is written.
+ *
+ * <p>Target nodes hold the {@link DataDigest} of their data instead of the
+ * data, as read by a reader set to read a target, so the index stays small
+ * however large the target payloads are.
+ */
+public final class TargetIndex {
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /**
+     * Create new index of a target tree.
+     *
+     * @param root
+     *            root of the target tree as returned by a reader set to read
+     *            a target, or {@code null} if the target path does not exist
+     *            yet
+     */
+    public TargetIndex(Node root) {
+        if (root == null) {
+            return;
+        }
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            nodes.put(node.getAbsolutePath(), node);
+            for (Node child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    /**
+     * Returns target node at the given absolute path, or {@code null} if it
+     * does not exist.
+     */
+    Node get(String path) {
+        return nodes.get(path);
+    }
+
+    /**
+     * Returns {@code true} if the indexed {@code target} node holds
+     * {@code data}.
+     */
+    static boolean sameData(Node target, byte[] data) {
+        return Arrays.equals(target.getData(), DataDigest.of(data));
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast transactions are committed to the target, shared by all
+ * writers of a copy.
+ *
+ * <p>Hard caps on operations and bytes per second are enforced by charging
+ * every transaction to a budget before it is committed: a transaction waits
+ * until the ones before it have been paid for at the allowed rate.
+ *
+ * <p>With a target latency, the rate and the transaction size adapt to how
+ * fast the target commits (AIMD): a commit slower than the target halves both,
+ * unless it was started before the previous decrease, and a faster one raises
+ * them by a fixed step, up to the configured caps. This
+ * keeps the target responsive for its other clients while using whatever
+ * capacity it has left.
+ */
+public final class Throttle {
+    private static final double DECREASE = 0.5;
+    private static final double RATE_INCREASE = 100;
+    private static final int BATCH_INCREASE = 10;
+    private static final double MIN_RATE = 1;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxOpsPerSecond;
+    private final double maxBytesPerSecond;
+    private final long targetLatency;
+    private double opsRate;
+    private int batchLimit = Integer.MAX_VALUE;
+    private long nextOps;
+    private long nextBytes;
+    private long windowStart;
+    private long windowOps;
+    private double observedRate;
+    private long lastDecrease;
+
+    /**
+     * Create new throttle.
+     *
+     * @param maxOpsPerSecond
+     *            maximum operations committed per second, 0 for no limit
+     * @param maxBytesPerSecond
+     *            maximum serialized bytes committed per second, 0 for no limit
+     * @param targetLatencyMillis
+     *            commit latency to adapt rate and transaction size to, 0 to
+     *            only enforce the limits
+     */
+    public Throttle(long maxOpsPerSecond, long maxBytesPerSecond, long targetLatencyMillis) {
+        this.maxOpsPerSecond = maxOpsPerSecond;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        opsRate = maxOpsPerSecond > 0 ? maxOpsPerSecond : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Wait until a transaction of the given size may be committed.
+     */
+    void acquire(int ops, int bytes) throws InterruptedException {
+        long wait = 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!Double.isInfinite(opsRate)) {
+                long start = Math.max(now, nextOps);
+                wait = start - now;
+                nextOps = start + (long) (ops * SECOND / opsRate);
+            }
+            if (maxBytesPerSecond > 0) {
+                long start = Math.max(now, nextBytes);
+                wait = Math.max(wait, start - now);
+                nextBytes = start + (long) (bytes * SECOND / maxBytesPerSecond);
+            }
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Account for a committed transaction and adapt to its latency.
+     */
+    synchronized void committed(int ops, long latencyNanos) {
+        if (targetLatency == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (windowOps == 0 && observedRate == 0) {
+            windowStart = now - latencyNanos;
+        }
+        windowOps += ops;
+        if (now - windowStart >= SECOND) {
+            observedRate = windowOps * (double) SECOND / (now - windowStart);
+            windowStart = now;
+            windowOps = 0;
+        }
+        if (latencyNanos > targetLatency) {
+            if (lastDecrease != 0 && now - latencyNanos < lastDecrease) {
+                // started before the last decrease took effect
+                return;
+            }
+            lastDecrease = now;
+            if (Double.isInfinite(opsRate)) {
+                opsRate = observedRate > 0 ? observedRate : ops * (double) SECOND / Math.max(1, latencyNanos);
+            }
+            opsRate = Math.max(MIN_RATE, opsRate * DECREASE);
+            batchLimit = Math.max(1, (int) (Math.min(batchLimit, ops) * DECREASE));
+            Writer.logger.info("Commit took " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms, throttling to "
+                    + (long) opsRate + " operations/s in transactions of " + batchLimit + " operations");
+        } else {
+            if (batchLimit != Integer.MAX_VALUE) {
+                batchLimit = (int) Math.min(Integer.MAX_VALUE - 1L, (long) batchLimit + BATCH_INCREASE);
+            }
+            if (!Double.isInfinite(opsRate)) {
+                opsRate += RATE_INCREASE;
+                if (maxOpsPerSecond > 0) {
+                    opsRate = Math.min(opsRate, maxOpsPerSecond);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of operations a transaction may currently hold.
+     */
+    synchronized int batchSize(int configured) {
+        return Math.min(configured, batchLimit);
+    }
+}
@@ -1,11 +1,19 @@
 package com.github.ksprojects.zkcopy.writer;
 
+import com.github.ksprojects.zkcopy.Journal;
 import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import com.github.ksprojects.zkcopy.PathFilter;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.Transaction;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
@@ -14,6 +22,7 @@ public class Writer {
     static Logger logger = Logger.getLogger(Writer.class);
     
     private Node sourceRoot;
+    private String sourcePath;
     private String destPath;
     private ZooKeeper zk;
     private boolean ignoreEphemeralNodes;
@@ -23,10 +32,25 @@ public class Writer {
     private long nodesUpdated = 0;
     private long nodesCreated = 0;
     private long nodesSkipped = 0;
+    private long nodesUnchanged = 0;
+    private long nodesIdentical = 0;
+    private long nodesDeleted = 0;
+    private long opsSkipped = 0;
     private long mtime;
     private long maxMtime;
-    private Transaction transaction;
+    private AutoCommitTransactionWrapper transaction;
     private int batchSize;
+    private int batchBytes = AutoCommitTransactionWrapper.DEFAULT_TRANSACTION_BYTES;
+    private int commitsInFlight = 1;
+    private TargetIndex targetIndex;
+    private Throttle throttle;
+    private Journal journal;
+    private PathFilter filter;
+    /**
+     * Streamed nodes written whose subtrees are not complete yet, with the
+     * number of children still to be completed.
+     */
+    private final Map<Node, Integer> incomplete = new IdentityHashMap<>();
 
     /**
      * Create new {@link Writer} instance.
@@ -47,88 +71,415 @@ public class Writer {
         this.zk = zk;
         this.destPath = destPath;
         this.sourceRoot = znode;
+        this.sourcePath = znode == null ? null : znode.getAbsolutePath();
         this.removeDeprecated = removeDeprecatedNodes;
         this.ignoreEphemeralNodes = ignoreEphemeralNodes;
         this.mtime = mtime;
         this.batchSize = batchSize;
     }
+
+    /**
+     * Create new {@link Writer} instance that takes nodes from a {@link NodeStream}
+     * instead of a complete tree, see {@link #write(NodeStream)}.
+     */
+    public Writer(ZooKeeper zk, String destPath, boolean removeDeprecatedNodes, boolean ignoreEphemeralNodes, long mtime, int batchSize) {
+        this(zk, destPath, null, removeDeprecatedNodes, ignoreEphemeralNodes, mtime, batchSize);
+    }
     
+    /**
+     * Limit the serialized size of a single transaction, in addition to the
+     * number of operations given by {@code batchSize}.
+     */
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Keep up to {@code commitsInFlight} transactions being committed while
+     * further operations are queued. Transactions are still committed after the
+     * ones they depend on, e.g. creating a child after creating its parent.
+     */
+    public void setCommitsInFlight(int commitsInFlight) {
+        this.commitsInFlight = commitsInFlight;
+    }
+
+    /**
+     * Use a prefetched view of the target tree instead of querying the target
+     * for every node. Nodes missing from the index are assumed not to exist.
+     */
+    public void setTargetIndex(TargetIndex targetIndex) {
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * Pace commits to the target, see {@link Throttle}.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Record every subtree whose operations have all been committed to
+     * {@code journal}, so an interrupted copy can be resumed.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Leave the target subtrees {@code filter} does not accept alone: they
+     * are not deleted, even though the source tree lacks them.
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
     /**
      * Start process of writing data to the target.
+     *
+     * @return {@code true} if all nodes were written
      */
-    public void write() {
+    public boolean write() {
         try {
-            Node dest = sourceRoot;
-            dest.setPath(destPath);
             logger.info("Writing data...");
-            transaction = new AutoCommitTransactionWrapper(zk, batchSize);
-            update(dest);
-            transaction.commit();
-            logger.info("Writing data completed.");
-            logger.info("Wrote " + (nodesCreated + nodesUpdated) + " nodes");
-            logger.info("Created " + nodesCreated + " nodes; Updated " + nodesUpdated + " nodes");
-            logger.info("Ignored " + ephemeralIgnored + " ephemeral nodes");
-            logger.info("Skipped " + nodesSkipped + " nodes older than " + mtime);
-            logger.info("Max mtime of copied nodes: " + maxMtime);
-            if (deletedEphemeral > 0) {
-                logger.info("Deleted " + deletedEphemeral + " ephemeral nodes");
-            }
+            transaction = newTransaction();
+            update(sourceRoot, destPath);
+            commit();
+            logSummary();
+            return opsSkipped == 0;
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Exception caught while writing nodes", e);
+            return false;
+        }
+    }
 
+    /**
+     * Write nodes as they arrive from {@code stream}, starting with the source
+     * root. Every node's parent must have been taken before the node itself.
+     * Data of written nodes is released so only queued nodes stay in memory.
+     *
+     * @return {@code true} if the whole stream was written
+     */
+    public boolean write(NodeStream stream) {
+        boolean completed = false;
+        try {
+            logger.info("Writing data...");
+            transaction = newTransaction();
+            Node node;
+            while ((node = stream.take()) != null) {
+                if (sourcePath == null) {
+                    sourcePath = node.getAbsolutePath();
+                }
+                String path = targetPath(node.getAbsolutePath());
+                if (writeNode(node, path) && removeDeprecated) {
+                    removeDeprecatedChildren(node, path);
+                }
+                node.setData(null);
+                if (journal != null) {
+                    written(node);
+                }
+            }
+            if (stream.isFailed()) {
+                logger.error("Reading source failed, remaining writes are discarded");
+                return false;
+            }
+            commit();
+            completed = true;
+            logSummary();
         } catch (KeeperException | InterruptedException e) {
             logger.error("Exception caught while writing nodes", e);
+        } finally {
+            if (!completed) {
+                stream.abort();
+            }
+        }
+        return completed && opsSkipped == 0;
+    }
+
+    /**
+     * Start a new transaction, used by {@link ParallelWriter} which drives
+     * several writers over parts of the same tree.
+     */
+    void begin() {
+        transaction = newTransaction();
+    }
+
+    /**
+     * Write a single node and remove its deprecated children, leaving its
+     * children to be written separately.
+     *
+     * @return {@code false} if the node is an ignored ephemeral node
+     */
+    boolean writeShallow(Node node) throws KeeperException, InterruptedException {
+        String path = targetPath(node.getAbsolutePath());
+        if (!writeNode(node, path)) {
+            return false;
+        }
+        if (removeDeprecated) {
+            removeDeprecatedChildren(node, path);
+        }
+        return true;
+    }
+
+    /**
+     * Write a node together with its whole subtree.
+     */
+    void writeSubtree(Node node) throws KeeperException, InterruptedException {
+        update(node, targetPath(node.getAbsolutePath()));
+    }
+
+    /**
+     * Commit operations queued since the last automatic commit.
+     */
+    void commit() throws KeeperException, InterruptedException {
+        transaction.commit();
+        opsSkipped = transaction.getSkippedOps();
+    }
+
+    /**
+     * Returns the number of operations skipped since the target rejected them
+     * even on their own.
+     */
+    long getSkippedOps() {
+        return opsSkipped;
+    }
+
+    /**
+     * Add counters of another writer to this one, so a single summary can be
+     * logged.
+     */
+    void addCounters(Writer other) {
+        ephemeralIgnored += other.ephemeralIgnored;
+        deletedEphemeral += other.deletedEphemeral;
+        nodesUpdated += other.nodesUpdated;
+        nodesCreated += other.nodesCreated;
+        nodesSkipped += other.nodesSkipped;
+        nodesUnchanged += other.nodesUnchanged;
+        nodesIdentical += other.nodesIdentical;
+        nodesDeleted += other.nodesDeleted;
+        opsSkipped += other.opsSkipped;
+        maxMtime = Math.max(maxMtime, other.maxMtime);
+    }
+
+    private AutoCommitTransactionWrapper newTransaction() {
+        AutoCommitTransactionWrapper wrapper;
+        if (commitsInFlight > 1) {
+            wrapper = new AutoCommitTransactionWrapper(zk, batchSize, batchBytes, commitsInFlight);
+        } else {
+            wrapper = new AutoCommitTransactionWrapper(zk, batchSize, batchBytes);
         }
+        wrapper.setThrottle(throttle);
+        return wrapper;
     }
 
-    private void update(Node node) throws KeeperException, InterruptedException {
-        String path = node.getAbsolutePath();
+    private String targetPath(String path) {
+        if (path.equals(sourcePath)) {
+            return destPath;
+        }
+        String relative = "/".equals(sourcePath) ? path : path.substring(sourcePath.length());
+        return "/".equals(destPath) ? relative : destPath + relative;
+    }
+
+    void logSummary() {
+        logger.info("Writing data completed.");
+        logger.info("Wrote " + (nodesCreated + nodesUpdated) + " nodes");
+        logger.info("Created " + nodesCreated + " nodes; Updated " + nodesUpdated + " nodes; Skipped "
+                + nodesIdentical + " identical nodes");
+        logger.info("Ignored " + ephemeralIgnored + " ephemeral nodes");
+        logger.info("Skipped " + nodesSkipped + " nodes older than " + mtime);
+        if (nodesUnchanged > 0) {
+            logger.info("Skipped " + nodesUnchanged + " nodes unchanged since the checkpoint");
+        }
+        logger.info("Max mtime of copied nodes: " + maxMtime);
+        if (nodesDeleted > 0) {
+            logger.info("Deleted " + nodesDeleted + " nodes of deprecated subtrees");
+        }
+        if (deletedEphemeral > 0) {
+            logger.info("Deleted " + deletedEphemeral + " ephemeral nodes");
+        }
+        if (opsSkipped > 0) {
+            logger.error("Skipped " + opsSkipped + " operations the target rejected, see errors above");
+        }
+    }
+
+    /**
+     * Write a node and its subtree to {@code path}. Target paths are derived
+     * from the parent's, so the source tree is never modified and several
+     * writers can share it.
+     */
+    private void update(Node node, String path) throws KeeperException, InterruptedException {
+        if (!writeNode(node, path)) {
+            return;
+        }
+
+        // 2. Recursively update or create children
+        String prefix = "/".equals(path) ? path : path + "/";
+        for (Node child : node.getChildren()) {
+            update(child, prefix + child.getPath());
+        }
+
+        if (removeDeprecated) {
+            // 3. Remove deprecated children
+            removeDeprecatedChildren(node, path);
+        }
+
+        if (journal != null) {
+            completed(Journal.relativePath(destPath, path));
+        }
+    }
+
+    /**
+     * Writes a single node, without its children.
+     *
+     * @return {@code false} if the node is an ignored ephemeral node
+     */
+    private boolean writeNode(Node node, String path) throws KeeperException, InterruptedException {
         if (ignoreEphemeralNodes && node.isEphemeral()) {
             ephemeralIgnored++;
-            Stat stat = zk.exists(path, false);
             // only delete ephemeral nodes if they've been copied over persistently before
+            if (targetIndex != null) {
+                Node target = targetIndex.get(path);
+                if (target != null && !target.isEphemeral()) {
+                    transaction.delete(path, -1);
+                    deletedEphemeral++;
+                }
+                return false;
+            }
+            long start = System.nanoTime();
+            Stat stat = zk.exists(path, false);
+            Metrics.TARGET_EXISTS.recordSince(start);
             if (stat != null && stat.getEphemeralOwner() == 0) {
                 transaction.delete(path, stat.getVersion());
                 deletedEphemeral++;
             }
-            return;
+            return false;
         }
 
-        if (node.getMtime() > mtime) {
-            upsertNode(node);
+        if (node.isDataUnchanged()) {
+            nodesUnchanged++;
+        } else if (node.getMtime() > mtime) {
+            upsertNode(node, path);
             maxMtime = Math.max(node.getMtime(), maxMtime);
         } else {
             nodesSkipped++;
         }
+        return true;
+    }
 
-        // 2. Recursively update or create children
-        for (Node child : node.getChildren()) {
-            update(child);
+    /**
+     * Account for a streamed node that has been written. Its subtree is
+     * complete once all children the reader hands over, that is all but the
+     * journaled ones, have completed their subtrees.
+     */
+    private void written(Node node) {
+        String relativePath = Journal.relativePath(sourcePath, node.getAbsolutePath());
+        int children = 0;
+        for (String child : node.getChildrenNamed()) {
+            if (!journal.isCompleted(relativePath, child)) {
+                children++;
+            }
+        }
+        if (children > 0) {
+            incomplete.put(node, children);
+            return;
+        }
+        for (Node done = node; done != null; done = done.getParent()) {
+            completed(Journal.relativePath(sourcePath, done.getAbsolutePath()));
+            Node parent = done.getParent();
+            if (parent == null) {
+                break;
+            }
+            int remaining = incomplete.get(parent) - 1;
+            if (remaining > 0) {
+                incomplete.put(parent, remaining);
+                break;
+            }
+            incomplete.remove(parent);
         }
+    }
 
-        if (removeDeprecated) {
-            // 3. Remove deprecated children
-            try {
-                List<String> destChildren = zk.getChildren(path, false);
-                for (String child : destChildren) {
-                    if (!node.getChildrenNamed().contains(child)) {
-                        // skip zookeeper node under the "/"
-                        if ("zookeeper".equals(child)) {
-                            continue;
-                        }
-                        if ("/".equals(node.getAbsolutePath())) {
-                            delete("/" + child);
-                        } else {
-                            delete(node.getAbsolutePath() + "/" + child);
-                        }
-                    }
+    /**
+     * Journal a subtree once the operations queued for it are committed.
+     */
+    private void completed(final String relativePath) {
+        transaction.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                journal.completed(relativePath);
+            }
+        });
+    }
+
+    private void removeDeprecatedChildren(Node node, String path) throws KeeperException, InterruptedException {
+        if (node.isChildrenUnchanged()) {
+            // target children were removed when they were removed on source
+            return;
+        }
+        Collection<String> destChildren = targetChildren(path);
+        if (destChildren == null) {
+            // If there was no such node before this transaction started, then it can't have
+            // any children and is therefore safe to ignore
+            return;
+        }
+        String relativePath = filter == null ? null : Journal.relativePath(destPath, path);
+        List<String> deprecated = null;
+        for (String child : destChildren) {
+            if (!node.getChildrenNamed().contains(child)) {
+                // skip zookeeper node under the "/"
+                if ("zookeeper".equals(child)) {
+                    continue;
+                }
+                if (filter != null && !filter.accepts(relativePath, child)) {
+                    // filtered out of the copy, not deprecated
+                    continue;
                 }
-            } catch (KeeperException e) {
-                if (e.code() == KeeperException.Code.NONODE) {
-                    // If there was no such node before this transaction started, then it can't have
-                    // any children and is therefore safe to ignore
-                    return;
+                if (deprecated == null) {
+                    deprecated = new ArrayList<>();
                 }
-                throw e;
+                deprecated.add("/".equals(path) ? "/" + child : path + "/" + child);
+            }
+        }
+        if (deprecated != null) {
+            delete(deprecated);
+        }
+    }
+
+    /**
+     * Delete deprecated target subtrees. All their nodes are listed at once
+     * and queued leaves first, so the deletes fill whole transactions.
+     */
+    private void delete(List<String> roots) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        List<String> paths = new SubtreeEnumerator(zk, targetIndex).leavesFirst(roots);
+        for (String path : paths) {
+            transaction.delete(path, -1);
+        }
+        nodesDeleted += paths.size();
+        Metrics.DELETE.recordSince(start);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Deleting " + paths.size() + " nodes of deprecated subtrees " + roots);
+        }
+    }
+
+    /**
+     * Returns names of the children of a target node, or {@code null} if the
+     * node does not exist.
+     */
+    private Collection<String> targetChildren(String path) throws KeeperException, InterruptedException {
+        if (targetIndex != null) {
+            Node target = targetIndex.get(path);
+            return target == null ? null : target.getChildrenNamed();
+        }
+        long start = System.nanoTime();
+        try {
+            return zk.getChildren(path, false);
+        } catch (KeeperException e) {
+            if (e.code() == KeeperException.Code.NONODE) {
+                return null;
             }
+            throw e;
+        } finally {
+            Metrics.TARGET_GET_CHILDREN.recordSince(start);
         }
     }
 
@@ -137,22 +488,42 @@ public class Writer {
      * 
      * @param node
      *            The node to copy
+     * @param nodePath
+     *            target path of the node
      * @throws KeeperException
      *             If the server signals an error
      * @throws InterruptedException
      *             If the server transaction is interrupted
      */
-    private void upsertNode(Node node) throws KeeperException, InterruptedException {
-        String nodePath = node.getAbsolutePath();
-        // 1. Update or create current node
-        Stat stat = zk.exists(nodePath, false);
-        if (stat != null) {
+    private void upsertNode(Node node, String nodePath) throws KeeperException, InterruptedException {
+        // 1. Update or create current node, unless the target already holds the same data
+        // read once, spilled data is copied back on every call
+        byte[] data = node.getData();
+        boolean exists;
+        boolean same;
+        if (targetIndex != null) {
+            Node target = targetIndex.get(nodePath);
+            exists = target != null;
+            same = exists && TargetIndex.sameData(target, data);
+        } else {
+            long start = System.nanoTime();
+            Stat stat = zk.exists(nodePath, false);
+            Metrics.TARGET_EXISTS.recordSince(start);
+            exists = stat != null;
+            int length = data == null ? 0 : data.length;
+            // payloads are only fetched when their lengths cannot tell them apart
+            same = exists && stat.getDataLength() == length && (length == 0 || sameData(data, targetData(nodePath)));
+        }
+        if (same) {
+            logger.debug("Skipping identical " + nodePath);
+            nodesIdentical++;
+        } else if (exists) {
             logger.debug("Attempting to update " + nodePath);
-            transaction.setData(nodePath, node.getData(), -1);
+            transaction.setData(nodePath, data, -1);
             nodesUpdated++;
         } else {
             logger.debug("Attempting to create " + nodePath);
-            transaction.create(nodePath, node.getData(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            transaction.create(nodePath, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
             nodesCreated++;
         }
         if (nodesUpdated % 100 == 0) {
@@ -160,13 +531,30 @@ public class Writer {
         }
     }
 
-    private void delete(String path) throws KeeperException, InterruptedException {
-        List<String> children = zk.getChildren(path, false);
-        for (String child : children) {
-            delete(path + "/" + child);
+    /**
+     * Returns data of a target node, or {@code null} if it was deleted
+     * meanwhile.
+     */
+    private byte[] targetData(String path) throws KeeperException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return zk.getData(path, false, null);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        } finally {
+            Metrics.TARGET_GET_DATA.recordSince(start);
+        }
+    }
+
+    /**
+     * Compare payloads, treating {@code null} and empty data alike since both
+     * mean the node has no data.
+     */
+    private static boolean sameData(byte[] source, byte[] target) {
+        if (source == null || source.length == 0) {
+            return target == null || target.length == 0;
         }
-        transaction.delete(path, -1);
-        logger.info("Deleted node " + path);
+        return Arrays.equals(source, target);
     }
 
 }
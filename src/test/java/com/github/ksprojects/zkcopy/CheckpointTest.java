@@ -0,0 +1,44 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint");
+        Checkpoint checkpoint = Checkpoint.load(file, "source:2181/a", "target:2181/b");
+        assertNull(checkpoint.previous("/a"));
+        checkpoint.record("/a", 10L, 20L, Arrays.asList("x", "y"));
+        checkpoint.record("/a/x", 11L, 11L, Arrays.<String>asList());
+        checkpoint.save();
+
+        Checkpoint loaded = Checkpoint.load(file, "source:2181/a", "target:2181/b");
+        assertEquals(10L, loaded.previous("/a").getMzxid());
+        assertEquals(20L, loaded.previous("/a").getPzxid());
+        assertEquals(Arrays.asList("x", "y"), loaded.previous("/a").getChildren());
+        assertEquals(0, loaded.previous("/a/x").getChildren().size());
+        assertNull(loaded.previous("/a/y"));
+    }
+
+    @Test
+    public void testIgnoreOtherCopy() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint");
+        Checkpoint checkpoint = Checkpoint.load(file, "source:2181/a", "target:2181/b");
+        checkpoint.record("/a", 10L, 20L, Arrays.<String>asList());
+        checkpoint.save();
+
+        assertNull(Checkpoint.load(file, "source:2181/a", "target:2181/c").previous("/a"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResume() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        Journal journal = Journal.open(file, "source:2181/a", "target:2181/b", false);
+        journal.completed("/x");
+        journal.completed("/x/y");
+        journal.completed("");
+        journal.close();
+
+        Journal resumed = Journal.open(file, "source:2181/a", "target:2181/b", true);
+        assertTrue(resumed.isCompleted("", "x"));
+        assertTrue(resumed.isCompleted("/x", "y"));
+        assertFalse(resumed.isCompleted("", "y"));
+        resumed.completed("/z");
+        resumed.close();
+
+        // appended to, not replaced
+        Journal again = Journal.open(file, "source:2181/a", "target:2181/b", true);
+        assertTrue(again.isCompleted("", "x"));
+        assertTrue(again.isCompleted("", "z"));
+        again.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testIgnoreTornRecord() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        Journal journal = Journal.open(file, "source:2181/a", "target:2181/b", false);
+        journal.completed("/x");
+        journal.close();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            // a path length announcing more than was written
+            out.write(new byte[] {0, 10, '/'});
+        }
+
+        Journal resumed = Journal.open(file, "source:2181/a", "target:2181/b", true);
+        assertTrue(resumed.isCompleted("", "x"));
+        resumed.completed("/y");
+        resumed.close();
+
+        // the torn bytes were cut off, so the appended record reads back
+        Journal again = Journal.open(file, "source:2181/a", "target:2181/b", true);
+        assertTrue(again.isCompleted("", "x"));
+        assertTrue(again.isCompleted("", "y"));
+        assertFalse(again.isCompleted("", "/"));
+        again.close();
+    }
+
+    @Test
+    public void testStartOver() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        Journal journal = Journal.open(file, "source:2181/a", "target:2181/b", false);
+        journal.completed("/x");
+        journal.close();
+
+        assertFalse(Journal.open(file, "source:2181/a", "target:2181/c", true).isCompleted("", "x"));
+        assertFalse(Journal.open(file, "source:2181/a", "target:2181/b", false).isCompleted("", "x"));
+        assertEquals("", Journal.relativePath("/a", "/a"));
+        assertEquals("/x", Journal.relativePath("/", "/x"));
+        assertEquals("/x", Journal.relativePath("/a", "/a/x"));
+    }
+}
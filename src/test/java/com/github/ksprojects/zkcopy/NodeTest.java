@@ -0,0 +1,64 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class NodeTest {
+
+    @Test
+    public void testAbsolutePath() {
+        Node root = new Node("/source/path");
+        Node child = new Node(root, "child");
+        Node grandchild = new Node(child, "grandchild");
+        assertEquals("/source/path", root.getAbsolutePath());
+        assertEquals("/source/path/child", child.getAbsolutePath());
+        assertEquals("/source/path/child/grandchild", grandchild.getAbsolutePath());
+
+        root.setPath("/destination");
+        assertEquals("/destination/child/grandchild", grandchild.getAbsolutePath());
+    }
+
+    @Test
+    public void testAbsolutePathUnderRoot() {
+        Node root = new Node("/");
+        Node child = new Node(root, "child");
+        assertEquals("/", root.getAbsolutePath());
+        assertEquals("/child", child.getAbsolutePath());
+        assertEquals("/child/leaf", new Node(child, "leaf").getAbsolutePath());
+    }
+
+    @Test
+    public void testChildren() {
+        Node root = new Node("/");
+        root.reserveChildren(2);
+        for (String name : new String[] {"c", "a", "e", "b", "d"}) {
+            root.appendChild(new Node(root, name));
+        }
+        root.appendChildName("f");
+        assertEquals(5, root.getChildren().size());
+        assertEquals("c", root.getChildren().get(0).getPath());
+        assertEquals("d", root.getChildren().get(4).getPath());
+        assertEquals(6, root.getChildrenNamed().size());
+        assertTrue(root.getChildrenNamed().contains("a"));
+        assertTrue(root.getChildrenNamed().contains("f"));
+        assertFalse(root.getChildrenNamed().contains("g"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c", "d", "e", "f")),
+                new HashSet<>(root.getChildrenNamed()));
+        // children keep their order after names were sorted
+        assertEquals("c", root.getChildren().get(0).getPath());
+    }
+
+    @Test
+    public void testNameIsSharedWithParent() {
+        Node root = new Node("/");
+        Node child = new Node(root, new String("config".toCharArray()));
+        root.appendChild(child);
+        assertSame(child.getPath(), root.getChildrenNamed().iterator().next());
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class PathFilterTest {
+
+    @Test
+    public void testNoPatterns() {
+        assertNull(PathFilter.of(null, Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testExcludes() {
+        PathFilter filter = PathFilter.of(null, Arrays.asList("/brokers/ids", "locks", "/config/*-tmp",
+                "/admin/**/stale", "regex:/consumers/group-[0-9]+"));
+
+        assertTrue(filter.accepts(""));
+        assertTrue(filter.accepts("/brokers"));
+        assertFalse(filter.accepts("/brokers", "ids"));
+        assertFalse(filter.accepts("/brokers/ids/1"));
+        assertTrue(filter.accepts("/brokers/idsx"));
+
+        assertFalse(filter.accepts("/locks"));
+        assertFalse(filter.accepts("/a/b/locks/c"));
+
+        assertFalse(filter.accepts("/config/topics-tmp"));
+        assertTrue(filter.accepts("/config/topics"));
+        assertTrue(filter.accepts("/config/a/b-tmp"));
+
+        assertFalse(filter.accepts("/admin/stale"));
+        assertFalse(filter.accepts("/admin/x/y/stale/z"));
+        assertTrue(filter.accepts("/admin/x/y"));
+
+        assertFalse(filter.accepts("/consumers/group-12/offsets"));
+        assertTrue(filter.accepts("/consumers/group-x"));
+    }
+
+    @Test
+    public void testIncludes() {
+        PathFilter filter = PathFilter.of(Arrays.asList("/brokers/topics/?", "/config/**"),
+                Collections.singletonList("/brokers/topics/b"));
+
+        // nodes leading to an include are copied, nothing else
+        assertTrue(filter.accepts("/brokers"));
+        assertTrue(filter.accepts("/brokers/topics"));
+        assertTrue(filter.accepts("/brokers/topics/a/partitions"));
+        assertFalse(filter.accepts("/brokers/topics/ab"));
+        assertFalse(filter.accepts("/brokers/ids"));
+        assertFalse(filter.accepts("/controller"));
+        assertTrue(filter.accepts("/config"));
+        assertTrue(filter.accepts("/config/topics/a"));
+
+        // excludes take precedence
+        assertFalse(filter.accepts("/brokers/topics/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncludeRegexIsRejected() {
+        // it could not prune anything, every node might lead to a match
+        PathFilter.of(Arrays.asList("/a/**", "regex:/a/[0-9]+"), null);
+    }
+}
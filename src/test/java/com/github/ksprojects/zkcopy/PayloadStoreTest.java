@@ -0,0 +1,79 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class PayloadStoreTest {
+
+    @Test
+    public void testIdenticalPayloadsAreShared() throws IOException {
+        PayloadStore store = new PayloadStore();
+        byte[] first = store.intern(new byte[] {1, 2, 3});
+        byte[] second = store.intern(new byte[] {1, 2, 3});
+        byte[] other = store.intern(new byte[] {3, 2, 1});
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertArrayEquals(new byte[] {3, 2, 1}, other);
+        assertSame(store.intern(new byte[0]), store.intern(new byte[0]));
+        assertNull(store.intern(null));
+
+        assertEquals(5, store.getCount());
+        assertEquals(2, store.getDistinct());
+        assertEquals(9, store.getBytes());
+        assertEquals(6, store.getDistinctBytes());
+        assertEquals(1.5, store.getRatio(), 0.001);
+    }
+
+    @Test
+    public void testNothingShared() throws IOException {
+        PayloadStore store = new PayloadStore();
+        assertEquals(1, store.getRatio(), 0.001);
+        store.intern(new byte[] {1});
+        store.intern(new byte[] {2});
+        assertEquals(1, store.getRatio(), 0.001);
+    }
+
+    @Test
+    public void testSharedPayloadsAreSpilledOnce() throws IOException {
+        try (SpillFile spill = new SpillFile(100)) {
+            PayloadStore store = new PayloadStore(spill);
+            Node[] onHeap = {new Node("/a"), new Node("/b")};
+            Node[] spilled = {new Node("/c"), new Node("/d"), new Node("/e")};
+            for (Node node : onHeap) {
+                store.setData(node, payload(60, 1));
+            }
+            for (Node node : spilled) {
+                store.setData(node, payload(60, 2));
+            }
+
+            // charged to the heap and spilled once per distinct payload
+            assertEquals(60, spill.getHeapData());
+            assertEquals(60, spill.getSpilledData());
+            assertEquals(2, store.getDistinct());
+            assertEquals(120, store.getDistinctBytes());
+            for (Node node : onHeap) {
+                assertFalse(node.isDataSpilled());
+                assertSame(onHeap[0].getData(), node.getData());
+            }
+            for (Node node : spilled) {
+                assertTrue(node.isDataSpilled());
+                assertArrayEquals(payload(60, 2), node.getData());
+            }
+        }
+    }
+
+    private static byte[] payload(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
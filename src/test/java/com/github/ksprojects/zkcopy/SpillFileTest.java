@@ -0,0 +1,51 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class SpillFileTest {
+
+    @Test
+    public void testSpillsBeyondBudget() throws IOException {
+        try (SpillFile spill = new SpillFile(100)) {
+            Node onHeap = new Node("/a");
+            Node spilled = new Node("/b");
+            Node small = new Node("/c");
+            Node empty = new Node("/d");
+            spill.setData(onHeap, payload(60, 1));
+            spill.setData(spilled, payload(60, 2));
+            spill.setData(small, payload(8, 3));
+            spill.setData(empty, null);
+
+            assertFalse(onHeap.isDataSpilled());
+            assertTrue(spilled.isDataSpilled());
+            assertFalse(small.isDataSpilled());
+            assertEquals(60, spill.getHeapData());
+            assertEquals(60, spill.getSpilledData());
+
+            assertArrayEquals(payload(60, 1), onHeap.getData());
+            assertArrayEquals(payload(60, 2), spilled.getData());
+            assertEquals(60, spilled.getDataLength());
+            assertArrayEquals(payload(8, 3), small.getData());
+            assertNull(empty.getData());
+            assertEquals(0, empty.getDataLength());
+
+            spilled.setData(payload(1, 4));
+            assertFalse(spilled.isDataSpilled());
+            assertArrayEquals(payload(1, 4), spilled.getData());
+        }
+    }
+
+    private static byte[] payload(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
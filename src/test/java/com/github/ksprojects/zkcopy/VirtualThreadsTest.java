@@ -0,0 +1,41 @@
+package com.github.ksprojects.zkcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testRunsBlockedTasksConcurrently() throws InterruptedException {
+        ExecutorService executor = VirtualThreads.newExecutor("test", 4);
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 4; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            // on either kind of threads, all tasks block at once
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            release.countDown();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(VirtualThreads.isAvailable(), !executor.getClass().getName().contains("ThreadPoolExecutor"));
+    }
+}
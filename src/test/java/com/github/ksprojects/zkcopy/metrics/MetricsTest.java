@@ -0,0 +1,49 @@
+package com.github.ksprojects.zkcopy.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogramQuantiles() {
+        Histogram histogram = new Histogram("test");
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getMax());
+        // 500 us falls into the bucket up to 512 us
+        assertEquals(512000, histogram.quantile(0.5));
+        assertEquals(16384000, histogram.quantile(0.99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.quantile(1));
+    }
+
+    @Test
+    public void testHistogramOverflow() {
+        Histogram histogram = new Histogram("test");
+        histogram.record(TimeUnit.MINUTES.toNanos(5));
+        assertEquals(1, histogram.bucketCount(Histogram.buckets()));
+        assertEquals(TimeUnit.MINUTES.toNanos(5), histogram.quantile(0.5));
+    }
+
+    @Test
+    public void testReports() {
+        Metrics.MULTI.record(TimeUnit.MILLISECONDS.toNanos(3));
+        Metrics.WRITE.add(10, 100);
+        String prometheus = Metrics.toPrometheus();
+        assertTrue(prometheus.contains("# TYPE zkcopy_operation_seconds histogram\n"));
+        assertTrue(prometheus.contains("zkcopy_operation_seconds_bucket{operation=\"multi\",le=\"+Inf\"} "
+                + Metrics.MULTI.getCount() + "\n"));
+        assertTrue(prometheus.contains("zkcopy_phase_nodes_total{phase=\"write\"} " + Metrics.WRITE.getItems()
+                + "\n"));
+        String json = Metrics.toJson();
+        assertTrue(json.contains("\"multi\": {\"count\": " + Metrics.MULTI.getCount() + ","));
+        assertTrue(json.contains("\"write\": {\"nodes\": " + Metrics.WRITE.getItems() + ","));
+    }
+}
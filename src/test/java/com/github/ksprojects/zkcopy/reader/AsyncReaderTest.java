@@ -0,0 +1,99 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.github.ksprojects.zkcopy.Node;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AsyncReaderTest {
+
+    private Map<String, List<String>> tree;
+    private ZooKeeper mockZK;
+
+    @Before
+    public void setupMocks() {
+        tree = new HashMap<>();
+        tree.put("/source", Arrays.asList("a", "b", "zookeeper"));
+        tree.put("/source/a", Arrays.asList("c"));
+        tree.put("/source/a/c", Collections.<String>emptyList());
+        tree.put("/source/b", Collections.<String>emptyList());
+        mockZK = mock(ZooKeeper.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String path = invocation.getArgument(0);
+                DataCallback callback = invocation.getArgument(2);
+                if (!tree.containsKey(path)) {
+                    callback.processResult(KeeperException.Code.NONODE.intValue(), path,
+                            invocation.getArgument(3), null, null);
+                    return null;
+                }
+                Stat stat = new Stat();
+                stat.setMtime(path.length());
+                callback.processResult(KeeperException.Code.OK.intValue(), path, invocation.getArgument(3),
+                        path.getBytes(), stat);
+                return null;
+            }
+        }).when(mockZK).getData(anyString(), anyBoolean(), any(DataCallback.class), any());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String path = invocation.getArgument(0);
+                Children2Callback callback = invocation.getArgument(2);
+                List<String> children = tree.get(path);
+                int rc = children == null ? KeeperException.Code.NONODE.intValue() : KeeperException.Code.OK.intValue();
+                callback.processResult(rc, path, invocation.getArgument(3), children, new Stat());
+                return null;
+            }
+        }).when(mockZK).getChildren(anyString(), anyBoolean(), any(Children2Callback.class), any());
+    }
+
+    @Test
+    public void testReadTree() {
+        AsyncReader reader = new AsyncReader(Arrays.asList(mockZK, mockZK), "/source", 1);
+        Node root = reader.read();
+        List<String> paths = new ArrayList<>();
+        collect(root, paths);
+        Collections.sort(paths);
+        assertEquals(Arrays.asList("/source", "/source/a", "/source/a/c", "/source/b"), paths);
+        assertArrayEquals("/source/a/c".getBytes(), root.getChildren().get(0).getChildren().get(0).getData());
+        assertEquals("/source/a".length(), root.getChildren().get(0).getMtime());
+        assertTrue(root.getChildrenNamed().contains("b"));
+    }
+
+    @Test
+    public void testReadFailure() {
+        tree.put("/source/b", Arrays.asList("missing"));
+        AsyncReader reader = new AsyncReader(Arrays.asList(mockZK), "/source", 10);
+        assertNull(reader.read());
+    }
+
+    private static void collect(Node node, List<String> paths) {
+        paths.add(node.getAbsolutePath());
+        for (Node child : node.getChildren()) {
+            collect(child, paths);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class EnsembleTest {
+
+    @Test
+    public void testSpreadRoundRobin() {
+        Ensemble ensemble = Ensemble.of("a:2181, b:2181,c:2182", true);
+        assertEquals("a:2181", ensemble.connectString(0));
+        assertEquals("b:2181", ensemble.connectString(1));
+        assertEquals("c:2182", ensemble.connectString(2));
+        assertEquals("a:2181", ensemble.connectString(3));
+    }
+
+    @Test
+    public void testWholeConnectString() {
+        Ensemble ensemble = Ensemble.of("a:2181,b:2181", false);
+        assertEquals("a:2181,b:2181", ensemble.connectString(0));
+        assertEquals("a:2181,b:2181", ensemble.connectString(1));
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.ksprojects.zkcopy.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.github.ksprojects.zkcopy.DataDigest;
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class NodeReaderTest {
+
+    private Map<String, List<String>> tree;
+    private List<ZooKeeper> sessions;
+
+    @Before
+    public void setupMocks() throws KeeperException, InterruptedException {
+        tree = new HashMap<>();
+        tree.put("/source", Arrays.asList("a", "b", "zookeeper"));
+        tree.put("/source/a", Arrays.asList("c"));
+        tree.put("/source/a/c", Collections.<String>emptyList());
+        tree.put("/source/b", Collections.<String>emptyList());
+        sessions = Arrays.asList(mockSession(), mockSession());
+    }
+
+    private ZooKeeper mockSession() throws KeeperException, InterruptedException {
+        ZooKeeper zk = mock(ZooKeeper.class);
+        doAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws KeeperException {
+                String path = invocation.getArgument(0);
+                if (!tree.containsKey(path)) {
+                    throw new KeeperException.NoNodeException(path);
+                }
+                return path.getBytes();
+            }
+        }).when(zk).getData(anyString(), eq(false), any(Stat.class));
+        doAnswer(new Answer<List<String>>() {
+            @Override
+            public List<String> answer(InvocationOnMock invocation) throws KeeperException {
+                String path = invocation.getArgument(0);
+                List<String> children = tree.get(path);
+                if (children == null) {
+                    throw new KeeperException.NoNodeException(path);
+                }
+                return children;
+            }
+        }).when(zk).getChildren(anyString(), eq(false), nullable(Stat.class));
+        return zk;
+    }
+
+    @Test
+    public void testReadTree() throws InterruptedException {
+        Node root = new Node("/source");
+        ReadProgress progress = new ReadProgress();
+        AtomicBoolean failed = new AtomicBoolean();
+        read(root, progress, failed, false);
+
+        assertFalse(failed.get());
+        assertEquals(4, progress.getStarted());
+        assertEquals(0, progress.getInFlight());
+        List<String> paths = new ArrayList<>();
+        collect(root, paths);
+        Collections.sort(paths);
+        assertEquals(Arrays.asList("/source", "/source/a", "/source/a/c", "/source/b"), paths);
+        assertArrayEquals("/source/a/c".getBytes(), root.getChildren().get(0).getChildren().get(0).getData());
+    }
+
+    @Test
+    public void testReadFailure() throws InterruptedException {
+        tree.put("/source/b", Arrays.asList("missing"));
+        ReadProgress progress = new ReadProgress();
+        AtomicBoolean failed = new AtomicBoolean();
+        read(new Node("/source"), progress, failed, false);
+
+        // the failure is reported, and reading still completes
+        assertTrue(failed.get());
+        assertEquals(0, progress.getInFlight());
+    }
+
+    @Test
+    public void testReadTarget() throws InterruptedException {
+        long reads = Metrics.READ.getItems();
+        long sourceReads = Metrics.SOURCE_GET_DATA.getCount();
+        long targetReads = Metrics.TARGET_GET_DATA.getCount();
+        Node root = new Node("/source");
+        AtomicBoolean failed = new AtomicBoolean();
+        read(root, new ReadProgress(), failed, true);
+
+        assertFalse(failed.get());
+        assertArrayEquals(DataDigest.of("/source/a/c".getBytes()),
+                root.getChildren().get(0).getChildren().get(0).getData());
+        // a target is not part of what was read from the source
+        assertEquals(reads, Metrics.READ.getItems());
+        assertEquals(sourceReads, Metrics.SOURCE_GET_DATA.getCount());
+        assertEquals(targetReads + 4, Metrics.TARGET_GET_DATA.getCount());
+    }
+
+    private void read(Node root, ReadProgress progress, AtomicBoolean failed, boolean target)
+            throws InterruptedException {
+        ReaderThreadFactory threadFactory = new ReaderThreadFactory(sessions);
+        ForkJoinPool pool = new ForkJoinPool(sessions.size(), threadFactory, null, false);
+        try {
+            pool.execute(new NodeReader(root, progress, failed, null, null, null, null, null, null, null, target));
+            assertTrue(progress.await(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            threadFactory.closeZookeepers();
+        }
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        // workers share the sessions, which are closed once
+        for (ZooKeeper zk : sessions) {
+            verify(zk, times(1)).close();
+        }
+    }
+
+    private static void collect(Node node, List<String> paths) {
+        paths.add(node.getAbsolutePath());
+        for (Node child : node.getChildren()) {
+            collect(child, paths);
+        }
+    }
+}
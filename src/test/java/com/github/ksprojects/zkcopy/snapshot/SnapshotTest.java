@@ -0,0 +1,65 @@
+package com.github.ksprojects.zkcopy.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotTest {
+
+    private static final byte[] THEDATA = "the data".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException, InterruptedException {
+        Node root = new Node("/source");
+        root.setData(THEDATA);
+        root.setMtime(42L);
+        Node child = new Node(root, "child");
+        child.setEphemeral(true);
+        root.appendChild(child);
+        Node leaf = new Node(root, "leaf");
+        root.appendChild(leaf);
+
+        File file = folder.newFile("tree.snapshot");
+        new SnapshotWriter(file).write(root);
+
+        NodeStream stream = new NodeStream(10);
+        assertTrue(new SnapshotReader(file).read(stream));
+        Node node = stream.take();
+        assertEquals("/source", node.getAbsolutePath());
+        assertArrayEquals(THEDATA, node.getData());
+        assertEquals(42L, node.getMtime());
+        assertFalse(node.isEphemeral());
+        assertTrue(node.getChildrenNamed().contains("child"));
+        assertTrue(node.getChildrenNamed().contains("leaf"));
+
+        node = stream.take();
+        assertEquals("/source/child", node.getAbsolutePath());
+        assertTrue(node.isEphemeral());
+        node = stream.take();
+        assertEquals("/source/leaf", node.getAbsolutePath());
+        assertNull(node.getData());
+        assertNull(stream.take());
+        assertFalse(stream.isFailed());
+    }
+
+    @Test
+    public void testRejectForeignFile() throws IOException, InterruptedException {
+        File file = folder.newFile("not.snapshot");
+        NodeStream stream = new NodeStream(10);
+        assertFalse(new SnapshotReader(file).read(stream));
+        assertTrue(stream.isFailed());
+    }
+}
@@ -1,20 +1,39 @@
 package com.github.ksprojects.zkcopy.writer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyIterableOf;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.github.ksprojects.zkcopy.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooKeeper;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class AutoCommitTransactionWrapperTest {
 
     private static final int TRANSACTION_SIZE = 10;
+    private static final byte[] DATA = {0x1};
 
     @Test
     public void testAutoCommit() throws InterruptedException, KeeperException {
@@ -45,4 +64,240 @@ public class AutoCommitTransactionWrapperTest {
 
     }
 
+    @Test
+    public void testCommitBySize() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(transaction);
+        byte[] data = new byte[1000];
+        int opSize = AutoCommitTransactionWrapper.setDataSize("/test/blah", data);
+        // room for exactly three operations per transaction
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1000, 4 * opSize - 1);
+        for (int i = 0; i < 9; i++) {
+            wrapper.setData("/test/blah", data, -1);
+        }
+        verify(transaction, times(2)).commit();
+        verify(transaction, times(9)).setData("/test/blah", data, -1);
+    }
+
+    @Test
+    public void testOversizedOperation() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(transaction);
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1000, 100);
+        wrapper.delete("/test/blah", -1);
+        wrapper.setData("/test/blah", new byte[200], -1);
+        wrapper.setData("/test/blah", new byte[200], -1);
+        verify(transaction, times(2)).commit();
+    }
+
+    @Test
+    public void testPipelinedCommitWaitsForParent() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction parent = mock(Transaction.class);
+        Transaction child = mock(Transaction.class);
+        Transaction sibling = mock(Transaction.class);
+        Transaction last = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(parent, child, sibling, last);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch siblingCommitted = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        }).when(parent).commit();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                siblingCommitted.countDown();
+                return null;
+            }
+        }).when(sibling).commit();
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1, 1000, 3);
+        wrapper.create("/test", null, null, CreateMode.PERSISTENT);
+        wrapper.create("/test/child", null, null, CreateMode.PERSISTENT);
+        wrapper.create("/other", null, null, CreateMode.PERSISTENT);
+
+        // an unrelated transaction does not wait, the child does
+        assertTrue(siblingCommitted.await(5, TimeUnit.SECONDS));
+        verify(child, never()).commit();
+        release.countDown();
+        wrapper.commit();
+        verify(child, times(1)).commit();
+        verify(last, times(1)).commit();
+    }
+
+    @Test
+    public void testPipelinedCommitFailure() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction failing = mock(Transaction.class);
+        Transaction child = mock(Transaction.class);
+        Transaction last = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(failing, child, last);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException, KeeperException {
+                release.await();
+                throw new KeeperException.SessionExpiredException();
+            }
+        }).when(failing).commit();
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1, 1000, 2);
+        wrapper.create("/test", null, null, CreateMode.PERSISTENT);
+        wrapper.create("/test/child", null, null, CreateMode.PERSISTENT);
+        release.countDown();
+        boolean failed = false;
+        try {
+            wrapper.commit();
+        } catch (KeeperException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        verify(child, never()).commit();
+        verify(last, never()).commit();
+    }
+
+    @Test
+    public void testAfterCommitRunsInOrder() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction first = mock(Transaction.class);
+        Transaction second = mock(Transaction.class);
+        Transaction last = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(first, second, last);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch secondCommitted = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        }).when(first).commit();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                secondCommitted.countDown();
+                return null;
+            }
+        }).when(second).commit();
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1, 1000, 2);
+        wrapper.afterCommit(record(done, "before"));
+        wrapper.create("/a", null, null, CreateMode.PERSISTENT);
+        wrapper.afterCommit(record(done, "a"));
+        wrapper.create("/b", null, null, CreateMode.PERSISTENT);
+        wrapper.afterCommit(record(done, "b"));
+
+        // the second transaction is committed, but not everything before it
+        assertTrue(secondCommitted.await(5, TimeUnit.SECONDS));
+        assertTrue(done.isEmpty());
+        release.countDown();
+        wrapper.afterCommit(record(done, "end"));
+        wrapper.commit();
+        assertEquals(Arrays.asList("before", "a", "b", "end"), done);
+    }
+
+    @Test
+    public void testRejectedTransactionIsCommittedInParts() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(transaction);
+        when(transaction.commit()).thenThrow(new KeeperException.NodeExistsException("/test/exists"));
+        final List<String> committed = Collections.synchronizedList(new ArrayList<String>());
+        when(mockZK.multi(anyIterableOf(Op.class))).thenAnswer(new Answer<List<OpResult>>() {
+            @Override
+            public List<OpResult> answer(InvocationOnMock invocation) throws KeeperException {
+                // Op.Create does not compare paths, so operations are told apart by type and path
+                List<String> ops = new ArrayList<>();
+                for (Op op : invocation.<Iterable<Op>>getArgument(0)) {
+                    ops.add(op.getType() + " " + op.getPath());
+                }
+                if (ops.contains(ZooDefs.OpCode.create + " /test/exists")) {
+                    throw new KeeperException.NodeExistsException("/test/exists");
+                }
+                if (ops.contains(ZooDefs.OpCode.delete + " /test/gone")) {
+                    throw new KeeperException.NoNodeException("/test/gone");
+                }
+                if (ops.contains(ZooDefs.OpCode.delete + " /test/full")) {
+                    throw new KeeperException.NotEmptyException("/test/full");
+                }
+                committed.addAll(ops);
+                return Collections.emptyList();
+            }
+        });
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1000);
+        for (int i = 0; i < 8; i++) {
+            wrapper.create("/test/" + i, DATA, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        wrapper.create("/test/exists", DATA, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        wrapper.delete("/test/gone", -1);
+        wrapper.delete("/test/full", -1);
+        wrapper.afterCommit(record(done, "journaled"));
+        long written = Metrics.WRITE.getItems();
+        wrapper.commit();
+
+        // everything else is committed, in order, the existing node updated instead
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            expected.add(ZooDefs.OpCode.create + " /test/" + i);
+        }
+        expected.add(ZooDefs.OpCode.setData + " /test/exists");
+        assertEquals(expected, committed);
+        assertEquals(1, wrapper.getSkippedOps());
+        assertEquals(10, Metrics.WRITE.getItems() - written);
+        assertTrue(done.isEmpty());
+    }
+
+    @Test
+    public void testUnrecoverableFailureIsNotCommittedInParts() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(transaction);
+        when(transaction.commit()).thenThrow(new KeeperException.NoAuthException());
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1000);
+        wrapper.create("/test/a", DATA, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        wrapper.create("/test/b", DATA, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        try {
+            wrapper.commit();
+            fail("NOAUTH is not caused by a single operation");
+        } catch (KeeperException.NoAuthException e) {
+            // expected
+        }
+        verify(mockZK, never()).multi(anyIterableOf(Op.class));
+    }
+
+    @Test
+    public void testConnectionLossIsRetried() throws InterruptedException, KeeperException {
+        ZooKeeper mockZK = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(mockZK.transaction()).thenReturn(transaction);
+        when(transaction.commit()).thenThrow(new KeeperException.ConnectionLossException());
+        when(mockZK.multi(anyIterableOf(Op.class))).thenThrow(new KeeperException.ConnectionLossException())
+                .thenReturn(Collections.<OpResult>emptyList());
+
+        AutoCommitTransactionWrapper wrapper = new AutoCommitTransactionWrapper(mockZK, 1000);
+        wrapper.create("/test", DATA, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        wrapper.commit();
+
+        verify(mockZK, times(2)).multi(anyIterableOf(Op.class));
+        assertEquals(0, wrapper.getSkippedOps());
+    }
+
+    private static Runnable record(final List<String> done, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                done.add(name);
+            }
+        };
+    }
 }
@@ -0,0 +1,71 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyListOf;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.ksprojects.zkcopy.Node;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+public class FanOutTest {
+
+    private static final byte[] THEDATA = "the data".getBytes();
+
+    @Test
+    public void testFailingTargetDoesNotStopOthers() throws InterruptedException, KeeperException {
+        final Node root = new Node("/source");
+        root.setData(THEDATA);
+        for (String name : Arrays.asList("a", "b", "c")) {
+            Node child = new Node(root, name);
+            child.setData(THEDATA);
+            root.appendChild(child);
+        }
+        Transaction good = mock(Transaction.class);
+        final ZooKeeper goodZK = mockTarget(good);
+        Transaction bad = mock(Transaction.class);
+        when(bad.commit()).thenThrow(new KeeperException.SessionExpiredException());
+        final ZooKeeper badZK = mockTarget(bad);
+
+        List<String> failed = FanOut.write(Arrays.asList("good", "bad"), new FanOut.Target() {
+            @Override
+            public boolean write(String location) {
+                ZooKeeper zk = "good".equals(location) ? goodZK : badZK;
+                return new Writer(zk, "/destination", root, false, true, -1, 10).write();
+            }
+        });
+
+        assertEquals(Collections.singletonList("bad"), failed);
+        verify(good, times(1)).create(eq("/destination"), eq(THEDATA), anyListOf(ACL.class),
+                any(CreateMode.class));
+        for (String name : Arrays.asList("a", "b", "c")) {
+            verify(good, times(1)).create(eq("/destination/" + name), eq(THEDATA), anyListOf(ACL.class),
+                    any(CreateMode.class));
+        }
+        verify(good, times(1)).commit();
+    }
+
+    private static ZooKeeper mockTarget(Transaction transaction) throws InterruptedException, KeeperException {
+        ZooKeeper zk = mock(ZooKeeper.class);
+        when(zk.transaction()).thenReturn(transaction);
+        when(zk.getData(anyString(), anyBoolean(), nullable(Stat.class)))
+                .thenThrow(new KeeperException.NoNodeException());
+        return zk;
+    }
+}
@@ -0,0 +1,313 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.ksprojects.zkcopy.Checkpoint;
+import com.github.ksprojects.zkcopy.PathFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class FollowerTest {
+
+    private static final byte[] THEDATA = "the data".getBytes();
+    private static final byte[] NEWDATA = "new data".getBytes();
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // source tree shared by all source sessions
+    private final Map<String, byte[]> sourceData = new ConcurrentHashMap<>();
+    private final Map<String, Long> sourceMzxid = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> sourceChildren = new ConcurrentHashMap<>();
+    private final AtomicLong zxid = new AtomicLong();
+    private final BlockingQueue<ZooKeeper> sessions = new LinkedBlockingQueue<>();
+    private final Set<String> targetNodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ZooKeeper mockTarget;
+    private Transaction mockTransaction;
+    private Follower follower;
+    private Thread following;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    @Before
+    public void setupMocks() throws KeeperException, InterruptedException {
+        putSource("/src", THEDATA, "a");
+        putSource("/src/a", THEDATA);
+        mockTarget = mock(ZooKeeper.class);
+        mockTransaction = mock(Transaction.class);
+        when(mockTarget.transaction()).thenReturn(mockTransaction);
+        targetNodes.add("/dst");
+        when(mockTarget.exists(anyString(), anyBoolean())).thenAnswer(new Answer<Stat>() {
+            @Override
+            public Stat answer(InvocationOnMock invocation) {
+                return targetNodes.contains(invocation.<String>getArgument(0)) ? new Stat() : null;
+            }
+        });
+        when(mockTarget.getChildren(anyString(), anyBoolean())).thenReturn(Collections.<String>emptyList());
+    }
+
+    @After
+    public void stopFollowing() throws InterruptedException {
+        if (follower != null) {
+            follower.stop();
+            following.join();
+            assertTrue(stopped.get());
+        }
+    }
+
+    @Test
+    public void testCreatesNewNode() throws Exception {
+        ZooKeeper source = startFollowing(true, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).create(eq("/dst/a"), eq(THEDATA), ArgumentMatchers.<ACL>anyList(),
+                eq(CreateMode.PERSISTENT));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        putSource("/src/b", NEWDATA);
+        putSource("/src", THEDATA, "a", "b");
+        follower.process(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                "/src"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).create(eq("/dst/b"), eq(NEWDATA), ArgumentMatchers.<ACL>anyList(),
+                eq(CreateMode.PERSISTENT));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        // the new child is watched too
+        verify(source).exists("/src/b", follower);
+        verify(source).getChildren(eq("/src/b"), eq(follower), any(Stat.class));
+    }
+
+    @Test
+    public void testWritesChangedData() throws Exception {
+        targetNodes.add("/dst/a");
+        ZooKeeper source = startFollowing(true, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        // the data watch fires without a change, e.g. when set to the same data
+        follower.process(new WatchedEvent(Event.EventType.NodeDataChanged, Event.KeeperState.SyncConnected,
+                "/src/a"));
+        putSource("/src/a", NEWDATA);
+        follower.process(new WatchedEvent(Event.EventType.NodeDataChanged, Event.KeeperState.SyncConnected,
+                "/src/a"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).setData("/dst/a", NEWDATA, -1);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        // the watch is armed with exists, data is only read when it changed
+        verify(source, times(3)).exists("/src/a", follower);
+        verify(source, times(2)).getData(eq("/src/a"), eq(false), any(Stat.class));
+        verify(mockTransaction, never()).create(eq("/dst/a"), any(byte[].class), ArgumentMatchers.<ACL>anyList(),
+                any(CreateMode.class));
+    }
+
+    @Test
+    public void testDeletesRemovedChild() throws Exception {
+        targetNodes.add("/dst/a");
+        startFollowing(true, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        removeSource("/src/a");
+        follower.process(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                "/src"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).delete("/dst/a", -1);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+    }
+
+    @Test
+    public void testRewritesRecreatedChild() throws Exception {
+        targetNodes.add("/dst/a");
+        ZooKeeper source = startFollowing(true, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        // deleted and created again before the events are handled, the parent's children look unchanged
+        putSource("/src/a/x", THEDATA);
+        putSource("/src/a", NEWDATA, "x");
+        follower.process(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                "/src"));
+        follower.process(new WatchedEvent(Event.EventType.NodeDeleted, Event.KeeperState.SyncConnected,
+                "/src/a"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).setData("/dst/a", NEWDATA, -1);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).create(eq("/dst/a/x"), eq(THEDATA), ArgumentMatchers.<ACL>anyList(),
+                eq(CreateMode.PERSISTENT));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        verify(source).exists("/src/a/x", follower);
+
+        // created again only after the deletion was handled
+        removeSource("/src/a/x");
+        removeSource("/src/a");
+        follower.process(new WatchedEvent(Event.EventType.NodeDeleted, Event.KeeperState.SyncConnected,
+                "/src/a"));
+        putSource("/src/a", THEDATA);
+        sourceChildren.get("/src").add("a");
+        follower.process(new WatchedEvent(Event.EventType.NodeCreated, Event.KeeperState.SyncConnected,
+                "/src/a"));
+        // written once by the initial walk and once more when created again
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).setData("/dst/a", THEDATA, -1);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(3)).commit();
+    }
+
+    @Test
+    public void testKeepsRemovedChildWithCopyOnly() throws Exception {
+        targetNodes.add("/dst/a");
+        startFollowing(false, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        removeSource("/src/a");
+        putSource("/src/b", NEWDATA);
+        putSource("/src", THEDATA, "b");
+        follower.process(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                "/src"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).create(eq("/dst/b"), eq(NEWDATA), ArgumentMatchers.<ACL>anyList(),
+                eq(CreateMode.PERSISTENT));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        verify(mockTransaction, never()).delete(anyString(), eq(-1));
+    }
+
+    @Test
+    public void testIgnoresFilteredPath() throws Exception {
+        ZooKeeper source = startFollowing(true,
+                PathFilter.of(Collections.<String>emptyList(), Arrays.asList("/b")));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        putSource("/src/b", NEWDATA);
+        putSource("/src/c", NEWDATA);
+        putSource("/src", THEDATA, "a", "b", "c");
+        follower.process(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                "/src"));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).create(eq("/dst/c"), eq(NEWDATA), ArgumentMatchers.<ACL>anyList(),
+                eq(CreateMode.PERSISTENT));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        verify(mockTransaction, never()).create(eq("/dst/b"), any(byte[].class), ArgumentMatchers.<ACL>anyList(),
+                any(CreateMode.class));
+        verify(source, never()).exists("/src/b", follower);
+    }
+
+    @Test
+    public void testRewatchesAfterSessionExpiry() throws Exception {
+        targetNodes.add("/dst/a");
+        ZooKeeper expired = startFollowing(true, null);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).commit();
+
+        ZooKeeper renewed = newSource();
+        putSource("/src/a", NEWDATA);
+        follower.process(new WatchedEvent(Event.EventType.None, Event.KeeperState.Expired, null));
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS)).setData("/dst/a", NEWDATA, -1);
+        verify(mockTransaction, timeout(TIMEOUT_MILLIS).times(2)).commit();
+        verify(expired).close();
+        verify(renewed).exists("/src", follower);
+        verify(renewed).exists("/src/a", follower);
+        verify(renewed).getChildren(eq("/src"), eq(follower), any(Stat.class));
+        verify(renewed).getChildren(eq("/src/a"), eq(follower), any(Stat.class));
+        // only the node that changed meanwhile is read again
+        verify(renewed, never()).getData(eq("/src"), anyBoolean(), any(Stat.class));
+    }
+
+    private ZooKeeper startFollowing(boolean removeDeprecatedNodes, PathFilter filter) throws Exception {
+        ZooKeeper source = newSource();
+        follower = new Follower("source:2181", "/src", mockTarget, "/dst", Checkpoint.inMemory("/src", "/dst"),
+                removeDeprecatedNodes, false, 1000, 1000) {
+            @Override
+            ZooKeeper openSource() {
+                return sessions.remove();
+            }
+        };
+        follower.setPathFilter(filter);
+        following = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopped.set(follower.follow());
+            }
+        });
+        following.start();
+        return source;
+    }
+
+    /**
+     * Returns a source session that is opened next, answering from the
+     * source tree.
+     */
+    private ZooKeeper newSource() throws KeeperException, InterruptedException {
+        ZooKeeper source = mock(ZooKeeper.class);
+        when(source.exists(anyString(), any(Watcher.class))).thenAnswer(new Answer<Stat>() {
+            @Override
+            public Stat answer(InvocationOnMock invocation) {
+                Long mzxid = sourceMzxid.get(invocation.<String>getArgument(0));
+                if (mzxid == null) {
+                    return null;
+                }
+                Stat stat = new Stat();
+                stat.setMzxid(mzxid);
+                return stat;
+            }
+        });
+        when(source.getData(anyString(), eq(false), any(Stat.class))).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws KeeperException {
+                String path = invocation.getArgument(0);
+                Long mzxid = sourceMzxid.get(path);
+                if (mzxid == null) {
+                    throw new KeeperException.NoNodeException(path);
+                }
+                invocation.<Stat>getArgument(2).setMzxid(mzxid);
+                return sourceData.get(path);
+            }
+        });
+        doAnswer(new Answer<List<String>>() {
+            @Override
+            public List<String> answer(InvocationOnMock invocation) throws KeeperException {
+                String path = invocation.getArgument(0);
+                List<String> children = sourceChildren.get(path);
+                if (children == null) {
+                    throw new KeeperException.NoNodeException(path);
+                }
+                invocation.<Stat>getArgument(2).setPzxid(zxid.get());
+                return new ArrayList<>(children);
+            }
+        }).when(source).getChildren(anyString(), any(Watcher.class), any(Stat.class));
+        sessions.add(source);
+        return source;
+    }
+
+    private void putSource(String path, byte[] data, String... children) {
+        sourceData.put(path, data);
+        sourceMzxid.put(path, zxid.incrementAndGet());
+        sourceChildren.put(path, new CopyOnWriteArrayList<>(children));
+    }
+
+    private void removeSource(String path) {
+        sourceData.remove(path);
+        sourceMzxid.remove(path);
+        sourceChildren.remove(path);
+        String parent = path.substring(0, path.lastIndexOf('/'));
+        sourceChildren.get(parent).remove(path.substring(path.lastIndexOf('/') + 1));
+        zxid.incrementAndGet();
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyListOf;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.ksprojects.zkcopy.Node;
+import java.util.Arrays;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+public class ParallelWriterTest {
+
+    private static final byte[] THEDATA = "the data".getBytes();
+
+    @Test
+    public void testWriteAllNodes() throws InterruptedException, KeeperException {
+        Node root = new Node("/source");
+        for (int i = 0; i < 10; i++) {
+            Node child = new Node(root, "child-" + i);
+            root.appendChild(child);
+            for (int j = 0; j < 10; j++) {
+                child.appendChild(new Node(child, "leaf-" + j));
+            }
+        }
+        ZooKeeper first = mock(ZooKeeper.class);
+        ZooKeeper second = mock(ZooKeeper.class);
+        Transaction transaction = mock(Transaction.class);
+        when(first.transaction()).thenReturn(transaction);
+        when(second.transaction()).thenReturn(transaction);
+        when(first.getData(anyString(), anyBoolean(), nullable(Stat.class)))
+                .thenThrow(new KeeperException.NoNodeException());
+        when(second.getData(anyString(), anyBoolean(), nullable(Stat.class)))
+                .thenThrow(new KeeperException.NoNodeException());
+
+        ParallelWriter writer = new ParallelWriter(Arrays.asList(first, second), "/destination", root, false, true, -1,
+                1000);
+        writer.write();
+        verify(transaction, times(1)).create(eq("/destination"), nullable(byte[].class), anyListOf(ACL.class),
+                any(CreateMode.class));
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                verify(transaction, times(1)).create(eq("/destination/child-" + i + "/leaf-" + j), nullable(byte[].class),
+                        anyListOf(ACL.class), any(CreateMode.class));
+            }
+        }
+        verify(first, atLeastOnce()).transaction();
+        verify(second, atLeastOnce()).transaction();
+    }
+}
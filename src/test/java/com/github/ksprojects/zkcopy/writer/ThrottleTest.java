@@ -0,0 +1,50 @@
+package com.github.ksprojects.zkcopy.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ThrottleTest {
+
+    @Test
+    public void testLimitOpsPerSecond() throws InterruptedException {
+        Throttle throttle = new Throttle(1000, 0, 0);
+        long start = System.nanoTime();
+        throttle.acquire(200, 0);
+        throttle.acquire(200, 0);
+        throttle.acquire(200, 0);
+        // the third transaction waits for the first two to be paid for
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(390));
+    }
+
+    @Test
+    public void testLimitBytesPerSecond() throws InterruptedException {
+        Throttle throttle = new Throttle(0, 10000, 0);
+        long start = System.nanoTime();
+        throttle.acquire(1, 2000);
+        throttle.acquire(1, 2000);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+    }
+
+    @Test
+    public void testAdaptBatchSize() {
+        Throttle throttle = new Throttle(0, 0, 100);
+        assertEquals(1000, throttle.batchSize(1000));
+        throttle.committed(1000, TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(500, throttle.batchSize(1000));
+        // started before the decrease, does not count again
+        throttle.committed(1000, TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(500, throttle.batchSize(1000));
+        throttle.committed(500, TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(510, throttle.batchSize(1000));
+    }
+
+    @Test
+    public void testNoAdaptationWithoutTargetLatency() {
+        Throttle throttle = new Throttle(0, 0, 0);
+        throttle.committed(1000, TimeUnit.SECONDS.toNanos(10));
+        assertEquals(1000, throttle.batchSize(1000));
+    }
+}
@@ -8,14 +8,25 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.github.ksprojects.zkcopy.DataDigest;
 import com.github.ksprojects.zkcopy.Node;
+import com.github.ksprojects.zkcopy.NodeStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Transaction;
@@ -24,6 +35,9 @@ import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class WriterTest {
     
@@ -31,27 +45,41 @@ public class WriterTest {
     private ZooKeeper mockZK;
     private Node mockNode;
     private Transaction mockTransaction;
-    private Stat mockStat;
     private Node mockChildNode;
+    private final Map<String, List<String>> targetChildren = new HashMap<>();
 
     @Before
-    public void setupMocks() {
+    public void setupMocks() throws KeeperException, InterruptedException {
         mockZK = mock(ZooKeeper.class);
         mockNode = mock(Node.class);
         mockTransaction = mock(Transaction.class);
-        mockStat = mock(Stat.class);
         mockChildNode = mock(Node.class);
         when(mockZK.transaction()).thenReturn(mockTransaction);
         when(mockNode.getAbsolutePath()).thenReturn("/destination/path");
         when(mockNode.getData()).thenReturn(THEDATA);
         when(mockChildNode.getAbsolutePath()).thenReturn("/destination/path/child");
+        when(mockChildNode.getPath()).thenReturn("child");
         when(mockChildNode.getData()).thenReturn(THEDATA);
         when(mockNode.getChildren()).thenReturn(Arrays.asList(mockChildNode));
+        when(mockZK.getData(anyString(), anyBoolean(), nullable(Stat.class)))
+                .thenThrow(new KeeperException.NoNodeException());
+        // deprecated subtrees are listed asynchronously, from targetChildren
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String path = invocation.getArgument(0);
+                List<String> children = targetChildren.get(path);
+                ((Children2Callback) invocation.getArgument(2)).processResult(KeeperException.Code.OK.intValue(),
+                        path, invocation.getArgument(3),
+                        children == null ? Collections.<String>emptyList() : children, new Stat());
+                return null;
+            }
+        }).when(mockZK).getChildren(anyString(), anyBoolean(), any(Children2Callback.class), any());
     }
 
     @Test
     public void testWriteNewNode() throws InterruptedException, KeeperException {
-        Writer writer = new Writer(mockZK, "/destination", mockNode, false, true, -1, 10);
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, -1, 10);
         writer.write();
         verify(mockZK, times(1)).transaction();
         verify(mockTransaction, times(1)).create(eq("/destination/path"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
@@ -60,20 +88,33 @@ public class WriterTest {
     
     @Test
     public void testWriteExistingNode() throws InterruptedException, KeeperException {
-        when(mockZK.exists(anyString(), anyBoolean())).thenReturn(mockStat);
+        // as long as the new data, so it has to be fetched to be compared
+        doReturn(dataStat("old data".length())).when(mockZK).exists(anyString(), anyBoolean());
+        doReturn("old data".getBytes()).when(mockZK).getData(anyString(), anyBoolean(), nullable(Stat.class));
         
-        Writer writer = new Writer(mockZK, "/destination", mockNode, false, true, -1, 10);
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, -1, 10);
         writer.write();
         verify(mockZK, times(1)).transaction();
         verify(mockTransaction, times(2)).setData(startsWith("/destination/path"), eq(THEDATA), eq(-1));
         verify(mockTransaction, times(1)).commit();
     }
     
+    @Test
+    public void testWriteChangedLengthWithoutData() throws InterruptedException, KeeperException {
+        doReturn(dataStat(THEDATA.length + 1)).when(mockZK).exists(anyString(), anyBoolean());
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, -1, 10);
+        writer.write();
+        verify(mockZK, never()).getData(anyString(), anyBoolean(), nullable(Stat.class));
+        verify(mockTransaction, times(2)).setData(startsWith("/destination/path"), eq(THEDATA), eq(-1));
+        verify(mockTransaction, times(1)).commit();
+    }
+
     @Test
     public void testWriteRemoveDeprecated() throws InterruptedException, KeeperException {
         when(mockZK.getChildren(eq("/destination/path"), anyBoolean())).thenReturn(Arrays.asList("a", "b"));
         
-        Writer writer = new Writer(mockZK, "/destination", mockNode, true, true, -1, 10);
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, true, true, -1, 10);
         writer.write();
         verify(mockZK, times(1)).transaction();
         verify(mockTransaction, times(1)).create(eq("/destination/path"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
@@ -87,7 +128,7 @@ public class WriterTest {
     public void testWriteSkipNewer() throws InterruptedException, KeeperException {
         when(mockNode.getMtime()).thenReturn(12345L);
         
-        Writer writer = new Writer(mockZK, "/destination", mockNode, false, true, 12346, 10);
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, 12346, 10);
         writer.write();
         verify(mockZK, times(1)).transaction();
         verify(mockTransaction, times(0)).setData(anyString(), eq(THEDATA), anyInt());
@@ -100,10 +141,114 @@ public class WriterTest {
     public void testWriteIgnoreEphemeral() throws InterruptedException, KeeperException {
         when(mockChildNode.isEphemeral()).thenReturn(true);
         
-        Writer writer = new Writer(mockZK, "/destination", mockNode, false, true, -1, 10);
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, -1, 10);
         writer.write();
         verify(mockZK, times(1)).transaction();
         verify(mockTransaction, times(1)).create(anyString(), nullable(byte[].class), anyListOf(ACL.class), any(CreateMode.class));
         verify(mockTransaction, times(1)).commit();
     }
+
+    @Test
+    public void testWriteStream() throws InterruptedException, KeeperException {
+        when(mockZK.getChildren(eq("/destination"), anyBoolean())).thenReturn(Arrays.asList("a", "b"));
+        Node root = new Node("/source");
+        root.setData(THEDATA);
+        root.appendChildName("a");
+        Node child = new Node(root, "a");
+        child.setData(THEDATA);
+        NodeStream stream = new NodeStream(10);
+        stream.put(root);
+        stream.put(child);
+        stream.close();
+
+        Writer writer = new Writer(mockZK, "/destination", true, true, -1, 10);
+        writer.write(stream);
+        verify(mockTransaction, times(1)).create(eq("/destination"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
+        verify(mockTransaction, times(1)).create(eq("/destination/a"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
+        verify(mockTransaction, times(1)).delete(eq("/destination/b"), anyInt());
+        verify(mockTransaction, times(1)).commit();
+    }
+
+    @Test
+    public void testWriteWithTargetIndex() throws InterruptedException, KeeperException {
+        Node target = new Node("/destination/path");
+        Node stale = new Node(target, "stale");
+        target.appendChild(stale);
+        stale.appendChild(new Node(stale, "leaf"));
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, true, true, -1, 10);
+        writer.setTargetIndex(new TargetIndex(target));
+        writer.write();
+        verify(mockZK, never()).exists(anyString(), anyBoolean());
+        verify(mockZK, never()).getChildren(anyString(), anyBoolean());
+        verify(mockTransaction, times(1)).setData(eq("/destination/path"), eq(THEDATA), eq(-1));
+        verify(mockTransaction, times(1)).create(eq("/destination/path/child"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
+        verify(mockTransaction, times(1)).delete(eq("/destination/path/stale/leaf"), anyInt());
+        verify(mockTransaction, times(1)).delete(eq("/destination/path/stale"), anyInt());
+    }
+
+    @Test
+    public void testWriteSkipIdenticalWithTargetIndex() throws InterruptedException, KeeperException {
+        Node target = new Node("/destination/path");
+        target.setData(DataDigest.of(THEDATA));
+        Node child = new Node(target, "child");
+        child.setData(DataDigest.of("old data".getBytes()));
+        target.appendChild(child);
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, true, true, -1, 10);
+        writer.setTargetIndex(new TargetIndex(target));
+        writer.write();
+        verify(mockZK, never()).getData(anyString(), anyBoolean(), nullable(Stat.class));
+        verify(mockTransaction, never()).setData(eq("/destination/path"), any(byte[].class), anyInt());
+        verify(mockTransaction, times(1)).setData(eq("/destination/path/child"), eq(THEDATA), eq(-1));
+    }
+
+    @Test
+    public void testWriteSkipUnchanged() throws InterruptedException, KeeperException {
+        when(mockNode.isDataUnchanged()).thenReturn(true);
+        when(mockNode.isChildrenUnchanged()).thenReturn(true);
+        when(mockChildNode.isChildrenUnchanged()).thenReturn(true);
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, true, true, -1, 10);
+        writer.write();
+        verify(mockZK, never()).getChildren(anyString(), anyBoolean());
+        verify(mockTransaction, never()).setData(eq("/destination/path"), any(byte[].class), anyInt());
+        verify(mockTransaction, times(1)).create(eq("/destination/path/child"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
+        verify(mockTransaction, times(1)).commit();
+    }
+
+    @Test
+    public void testWriteSkipIdentical() throws InterruptedException, KeeperException {
+        doReturn(dataStat(THEDATA.length)).when(mockZK).exists(eq("/destination/path"), anyBoolean());
+        doReturn(THEDATA).when(mockZK).getData(eq("/destination/path"), anyBoolean(), nullable(Stat.class));
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, false, true, -1, 10);
+        writer.write();
+        verify(mockTransaction, never()).setData(eq("/destination/path"), any(byte[].class), anyInt());
+        verify(mockTransaction, times(1)).create(eq("/destination/path/child"), eq(THEDATA), anyListOf(ACL.class), any(CreateMode.class));
+        verify(mockTransaction, times(1)).commit();
+    }
+
+    @Test
+    public void testDeleteDeprecatedLeavesFirst() throws InterruptedException, KeeperException {
+        when(mockZK.getChildren(eq("/destination/path"), anyBoolean())).thenReturn(Arrays.asList("stale"));
+        targetChildren.put("/destination/path/stale", Arrays.asList("a", "b"));
+        targetChildren.put("/destination/path/stale/a", Arrays.asList("leaf"));
+
+        Writer writer = new Writer(mockZK, "/destination/path", mockNode, true, true, -1, 10);
+        writer.write();
+        verify(mockZK, never()).getChildren(startsWith("/destination/path/stale"), anyBoolean());
+        InOrder deletes = inOrder(mockTransaction);
+        deletes.verify(mockTransaction).delete(eq("/destination/path/stale/a/leaf"), anyInt());
+        deletes.verify(mockTransaction).delete(eq("/destination/path/stale/a"), anyInt());
+        deletes.verify(mockTransaction).delete(eq("/destination/path/stale"), anyInt());
+        verify(mockTransaction, times(1)).delete(eq("/destination/path/stale/b"), anyInt());
+        verify(mockTransaction, times(4)).delete(anyString(), anyInt());
+    }
+
+    private static Stat dataStat(int dataLength) {
+        Stat stat = new Stat();
+        stat.setDataLength(dataLength);
+        return stat;
+    }
 }